@@ -0,0 +1,54 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import jetbrains.buildServer.clouds.CloudInstanceUserData;
+import jetbrains.buildServer.util.FileUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Patch of <code>buildAgent.properties</code> done on every instance start
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AgentPropertiesBenchmark {
+  @Param({"10", "200"})
+  public int parametersCount;
+
+  private File myWorkDir;
+  private File myInstanceDir;
+  private CloudInstanceUserData myData;
+
+  @Setup(Level.Trial)
+  public void createInstanceDir() throws IOException {
+    myWorkDir = FileUtil.createTempDirectory("local-cloud-properties", "");
+    myInstanceDir = SyntheticAgent.createDir(new File(myWorkDir, LocalCloudInstance.BASE_DIR_PREFIX + "0"), 10, 0);
+    final Map<String, String> parameters = new HashMap<String, String>();
+    for (int i = 0; i < parametersCount; i++) {
+      parameters.put("env.BENCHMARK_PARAMETER_" + i, "value " + i);
+    }
+    myData = new CloudInstanceUserData("benchmark-agent", "token", "http://localhost:8111", null, "profile", "benchmark profile", parameters);
+    //later starts of a reused instance read the patched file rather than the distribution one
+    LocalCloudInstance.updateAgentProperties(myInstanceDir, myData, true, "image", "1");
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteInstanceDir() {
+    FileUtil.delete(myWorkDir);
+  }
+
+  @Benchmark
+  public void updateAgentProperties() throws IOException {
+    LocalCloudInstance.updateAgentProperties(myInstanceDir, myData, false, "image", "1");
+  }
+}
@@ -0,0 +1,90 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import jetbrains.buildServer.util.FileUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Brings the image agent into an instance folder: a clone into a new folder and a sync of a reused folder
+ * with an unchanged template.
+ * <p/>
+ * Run on the filesystem of the server data, e.g. with <code>-Djava.io.tmpdir</code>: reflink falls back to copy
+ * on filesystems without copy-on-write support, it shows up as copy numbers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class CloneBenchmark {
+  @Param({"dir", "zip"})
+  public String layout;
+
+  @Param({"copy", "hardlink", "reflink"})
+  public String cloneMode;
+
+  @Param({"2000", "10000"})
+  public int fileCount;
+
+  @Param({"200"})
+  public int sizeMb;
+
+  private File myWorkDir;
+  private ProfileRuntimes myRuntimes;
+  private LocalCloudImage myImage;
+  private File mySyncedDir;
+  private File myInstanceDir;
+  private int myInstancesCount;
+
+  @Setup(Level.Trial)
+  public void createImage() throws IOException {
+    myWorkDir = FileUtil.createTempDirectory("local-cloud-clone", "");
+    final File agentDir = SyntheticAgent.createDir(new File(myWorkDir, "agent"), fileCount, sizeMb * 1024L * 1024L);
+    final File agentHome = "zip".equals(layout) ? SyntheticAgent.zip(agentDir, new File(myWorkDir, "agent.zip")) : agentDir;
+
+    myRuntimes = new ProfileRuntimes(new File(myWorkDir, "data"));
+    final LocalCloudProfile profile = LocalCloudProfile.parse(SyntheticAgent.createProfile(agentHome, 1, "clone=" + cloneMode, "reuse"));
+    myImage = myRuntimes.acquire("clone").getRuntime().applyProfile(profile).get(0);
+
+    mySyncedDir = newInstanceDir();
+    myImage.cloneTemplate(mySyncedDir);
+  }
+
+  @TearDown(Level.Trial)
+  public void disposeImage() {
+    myRuntimes.serverShutdown();
+    FileUtil.delete(myWorkDir);
+  }
+
+  @Setup(Level.Invocation)
+  public void createInstanceDir() throws IOException {
+    myInstanceDir = newInstanceDir();
+  }
+
+  @TearDown(Level.Invocation)
+  public void deleteInstanceDir() {
+    FileUtil.delete(myInstanceDir);
+  }
+
+  @Benchmark
+  public void cloneTemplate() throws IOException {
+    myImage.cloneTemplate(myInstanceDir);
+  }
+
+  @Benchmark
+  public void syncWithTemplate() throws IOException {
+    myImage.syncWithTemplate(mySyncedDir);
+  }
+
+  private File newInstanceDir() throws IOException {
+    final File dir = new File(myWorkDir, LocalCloudInstance.BASE_DIR_PREFIX + myInstancesCount++);
+    if (!dir.mkdirs()) throw new IOException("Failed to create " + dir);
+    return dir;
+  }
+}
@@ -0,0 +1,59 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.FileUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Profile parsing and the cloud client creation the server does on every profile change,
+ * images of the profile are unchanged, so the runtime keeps them
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProfileParsingBenchmark {
+  @Param({"100", "500"})
+  public int imagesCount;
+
+  private File myWorkDir;
+  private Map<String, String> myParams;
+  private ProfileRuntimes myRuntimes;
+  private EventDispatcher<BuildServerListener> myDispatcher;
+
+  @Setup(Level.Trial)
+  public void createProfile() throws IOException {
+    myWorkDir = FileUtil.createTempDirectory("local-cloud-profile", "");
+    final File agentDir = SyntheticAgent.createDir(new File(myWorkDir, "agent"), 10, 0);
+    myParams = SyntheticAgent.createProfile(agentDir, imagesCount, "reuse", "clone=hardlink", "memory=1024");
+    myRuntimes = new ProfileRuntimes(new File(myWorkDir, "data"));
+    myDispatcher = EventDispatcher.create(BuildServerListener.class);
+    new LocalCloudClient(LocalCloudProfile.parse(myParams), myRuntimes.acquire("profile"), myDispatcher);
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteProfile() {
+    myRuntimes.serverShutdown();
+    FileUtil.delete(myWorkDir);
+  }
+
+  @Benchmark
+  public LocalCloudProfile parseProfile() {
+    return LocalCloudProfile.parse(myParams);
+  }
+
+  @Benchmark
+  public LocalCloudClient createClient() {
+    return new LocalCloudClient(LocalCloudProfile.parse(myParams), myRuntimes.acquire("profile"), myDispatcher);
+  }
+}
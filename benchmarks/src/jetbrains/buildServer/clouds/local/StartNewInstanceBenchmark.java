@@ -0,0 +1,74 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import jetbrains.buildServer.clouds.CloudInstance;
+import jetbrains.buildServer.clouds.CloudInstanceUserData;
+import jetbrains.buildServer.util.FileUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link LocalCloudImage#startNewInstance} called by concurrent server threads.
+ * <p/>
+ * The image never launches agents (the <code>delay</code> option), so only the synchronous part is measured:
+ * instance creation with its folder, the index, the journal and the provisioning queue.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class StartNewInstanceBenchmark {
+  private File myWorkDir;
+  private File myAgentDir;
+  private ProfileRuntimes myRuntimes;
+  private LocalCloudImage myImage;
+  private CloudInstanceUserData myData;
+
+  @Setup(Level.Trial)
+  public void createAgent() throws IOException {
+    myWorkDir = FileUtil.createTempDirectory("local-cloud-start", "");
+    myAgentDir = SyntheticAgent.createDir(new File(myWorkDir, "agent"), 10, 0);
+    myData = new CloudInstanceUserData("benchmark-agent", "token", "http://localhost:8111", null, "profile", "benchmark profile",
+                                       Collections.<String, String>emptyMap());
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteAgent() {
+    FileUtil.delete(myWorkDir);
+  }
+
+  @Setup(Level.Iteration)
+  public void createImage() {
+    myRuntimes = new ProfileRuntimes(new File(myWorkDir, "data"));
+    final LocalCloudProfile profile = LocalCloudProfile.parse(SyntheticAgent.createProfile(myAgentDir, 1, "delay"));
+    myImage = myRuntimes.acquire("start").getRuntime().applyProfile(profile).get(0);
+  }
+
+  /**
+   * Instances are forgotten rather than terminated, their agents have never been launched
+   */
+  @TearDown(Level.Iteration)
+  public void disposeImage() {
+    for (CloudInstance instance : new ArrayList<CloudInstance>(myImage.getInstances())) {
+      final LocalCloudInstance localInstance = (LocalCloudInstance)instance;
+      myImage.forgetInstance(localInstance);
+      FileUtil.delete(localInstance.getBaseDir());
+    }
+    myRuntimes.serverShutdown();
+    FileUtil.delete(new File(myWorkDir, "data"));
+  }
+
+  @Benchmark
+  public LocalCloudInstance startNewInstance() {
+    return myImage.startNewInstance(myData);
+  }
+}
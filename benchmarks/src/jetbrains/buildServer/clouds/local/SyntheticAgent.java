@@ -0,0 +1,141 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates an agent distribution with the layout of a real one: scripts and configs, the launcher,
+ * libraries and plugins, which hold most of the files. File sizes are skewed like jar sizes are,
+ * the same parameters always produce the same distribution.
+ */
+final class SyntheticAgent {
+  private static final long SEED = 20121031;
+  private static final int FILES_PER_PLUGIN = 20;
+
+  private SyntheticAgent() {
+  }
+
+  /**
+   * @param fileCount  number of files in the distribution
+   * @param totalBytes approximate size of all files
+   */
+  @NotNull
+  static File createDir(@NotNull final File dir, final int fileCount, final long totalBytes) throws IOException {
+    final Random random = new Random(SEED);
+    final byte[] buffer = new byte[64 * 1024];
+    random.nextBytes(buffer);
+
+    write(new File(dir, "bin/agent.sh"), "#!/bin/sh\nexit 0\n");
+    write(new File(dir, "bin/agent.bat"), "@exit /b 0\r\n");
+    write(new File(dir, "launcher/bin/TeamCityAgentService-linux-x86-64"), "#!/bin/sh\nexit 0\n");
+    final StringBuilder config = new StringBuilder("## TeamCity build agent configuration\n");
+    for (int i = 0; i < 50; i++) {
+      config.append("#option").append(i).append("=value").append(i).append('\n');
+    }
+    write(new File(dir, "conf/buildAgent.dist.properties"), config.toString());
+    write(new File(dir, "conf/teamcity-agent-log4j2.xml"), "<Configuration/>\n");
+
+    final long meanSize = Math.max(1, totalBytes / Math.max(1, fileCount));
+    for (int i = 5; i < fileCount; i++) {
+      final File file;
+      final int kind = i % 10;
+      if (kind == 0) {
+        file = new File(dir, "launcher/lib/launcher-" + i + ".jar");
+      } else if (kind <= 3) {
+        file = new File(dir, "lib/library-" + i + ".jar");
+      } else {
+        file = new File(dir, "plugins/plugin-" + i / FILES_PER_PLUGIN + "/lib/plugin-" + i + ".jar");
+      }
+      //exponential distribution of sizes, a few big files and many small ones
+      final long size = Math.min(meanSize * 20, (long)(-Math.log(1 - random.nextDouble()) * meanSize));
+      write(file, buffer, size);
+    }
+    return dir;
+  }
+
+  @NotNull
+  static File zip(@NotNull final File agentDir, @NotNull final File zipFile) throws IOException {
+    final ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(zipFile)));
+    try {
+      addToZip(agentDir, "", out);
+    } finally {
+      FileUtil.close(out);
+    }
+    return zipFile;
+  }
+
+  /**
+   * @return profile parameters with the given number of images of the agent, every image has a few options
+   */
+  @NotNull
+  static Map<String, String> createProfile(@NotNull final File agentHome, final int imagesCount, @NotNull final String... options) {
+    final StringBuilder images = new StringBuilder();
+    for (int i = 0; i < imagesCount; i++) {
+      images.append("image-").append(i).append('@').append(agentHome.getAbsolutePath()).append('\n');
+    }
+    for (int i = 0; i < imagesCount; i++) {
+      images.append("@@image-").append(i).append(":max=").append(10 + i % 5).append('\n');
+      images.append("@@image-").append(i).append(":prop:image.index=").append(i).append('\n');
+      for (String option : options) {
+        images.append("@@image-").append(i).append(':').append(option).append('\n');
+      }
+    }
+    final Map<String, String> params = new HashMap<String, String>();
+    params.put(LocalCloudConstants.IMAGES_PROFILE_SETTING, images.toString());
+    return params;
+  }
+
+  private static void addToZip(@NotNull final File dir, @NotNull final String prefix, @NotNull final ZipOutputStream out) throws IOException {
+    final File[] files = dir.listFiles();
+    if (files == null) return;
+    Arrays.sort(files);
+    for (File file : files) {
+      final String name = prefix + file.getName();
+      if (file.isDirectory()) {
+        out.putNextEntry(new ZipEntry(name + "/"));
+        out.closeEntry();
+        addToZip(file, name + "/", out);
+        continue;
+      }
+      out.putNextEntry(new ZipEntry(name));
+      final InputStream in = new BufferedInputStream(new FileInputStream(file));
+      try {
+        final byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+          out.write(buffer, 0, read);
+        }
+      } finally {
+        FileUtil.close(in);
+      }
+      out.closeEntry();
+    }
+  }
+
+  private static void write(@NotNull final File file, @NotNull final String text) throws IOException {
+    final byte[] bytes = text.getBytes("UTF-8");
+    write(file, bytes, bytes.length);
+  }
+
+  private static void write(@NotNull final File file, @NotNull final byte[] content, final long size) throws IOException {
+    FileUtil.createParentDirs(file);
+    final OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+    try {
+      long left = size;
+      while (left > 0) {
+        final int chunk = (int)Math.min(left, content.length);
+        out.write(content, 0, chunk);
+        left -= chunk;
+      }
+    } finally {
+      FileUtil.close(out);
+    }
+  }
+}
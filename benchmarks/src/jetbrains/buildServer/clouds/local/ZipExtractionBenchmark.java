@@ -0,0 +1,59 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import jetbrains.buildServer.util.FileUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extraction of a zip image into the template folder, which the first instance of the image waits for
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ZipExtractionBenchmark {
+  @Param({"2000", "10000"})
+  public int fileCount;
+
+  @Param({"200"})
+  public int sizeMb;
+
+  private File myWorkDir;
+  private File myZipFile;
+  private ZipAgentTemplate myTemplate;
+
+  @Setup(Level.Trial)
+  public void createArchive() throws IOException {
+    myWorkDir = FileUtil.createTempDirectory("local-cloud-zip", "");
+    final File agentDir = SyntheticAgent.createDir(new File(myWorkDir, "agent"), fileCount, sizeMb * 1024L * 1024L);
+    myZipFile = SyntheticAgent.zip(agentDir, new File(myWorkDir, "agent.zip"));
+    FileUtil.delete(agentDir);
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteArchive() {
+    FileUtil.delete(myWorkDir);
+  }
+
+  @Setup(Level.Invocation)
+  public void createTemplate() {
+    myTemplate = new ZipAgentTemplate(myZipFile, "benchmark", new TemplateDirLeases());
+  }
+
+  @TearDown(Level.Invocation)
+  public void disposeTemplate() {
+    myTemplate.dispose();
+  }
+
+  @Benchmark
+  public File extract() throws IOException {
+    return myTemplate.getTemplateDir();
+  }
+}
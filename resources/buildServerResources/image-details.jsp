@@ -1,11 +1,136 @@
 
 
 <%@ taglib prefix="c" uri="http://java.sun.com/jsp/jstl/core" %>
+<%@ taglib prefix="fmt" uri="http://java.sun.com/jsp/jstl/fmt" %>
 
 <jsp:useBean id="image" type="jetbrains.buildServer.clouds.local.LocalCloudImage" scope="request"/>
 Image location: <c:out value="${image.agentHomeDir.absolutePath}"/>
+<c:if test="${not empty image.simulation}">
+  <br/>
+  Simulated instances, no agents are started. Start latency: <c:out value="${image.simulation}"/>
+</c:if>
 
 <c:if test="${image.reusable}">
  <br/>
  Instances will be reused. Agent will be un-authorized after stop
-</c:if>
\ No newline at end of file
+ <c:if test="${image.autoRestarts > 0}">
+   <br/>
+   Instances with dead agents are restarted up to <c:out value="${image.autoRestarts}"/> times in a row
+ </c:if>
+</c:if>
+<br/>
+Agent files clone mode: <c:out value="${image.configuredCloneMode.name}"/>
+<c:if test="${not empty image.usedCloneMode and image.usedCloneMode ne image.configuredCloneMode}">
+  (not supported by the filesystem, <c:out value="${image.usedCloneMode.name}"/> is used)
+</c:if>
+<br/>
+Agent launch mode: <c:out value="${image.launchMode.name}"/>
+<c:if test="${image.warmPool.size > 0}">
+  <br/>
+  Warm agent folders ready: <c:out value="${image.warmPool.readyCount}"/> of <c:out value="${image.warmPool.size}"/>
+</c:if>
+<c:if test="${image.captureEnabled}">
+  <br/>
+  <c:choose>
+    <c:when test="${not empty image.goldenImage.dir}">
+      Instances are cloned from the agent captured at <fmt:formatDate value="${image.goldenImage.captureTime}" pattern="dd MMM yy HH:mm:ss"/>
+    </c:when>
+    <c:otherwise>Instances are cloned from the image agent home, the agent is captured after its first upgrade</c:otherwise>
+  </c:choose>
+  <c:if test="${image.goldenImage.capturing}">(capturing upgraded agent now)</c:if>
+</c:if>
+<c:forEach items="${image.sharedCaches}" var="cache">
+  <br/>
+  Shared cache <c:out value="${cache.key}"/>: <c:out value="${cache.value.dir}"/>, used by <c:out value="${cache.value.usersCount}"/> running instances of all images
+</c:forEach>
+<br/>
+Provisioning: <c:out value="${image.provisioningQueueDepth}"/> queued, <c:out value="${image.provisioningInFlight}"/> in progress
+(all images: <c:out value="${image.provisioningScheduler.queueDepth}"/> queued, <c:out value="${image.provisioningScheduler.inFlight}"/> in progress
+of <c:out value="${image.provisioningScheduler.concurrency}"/> threads)
+<c:if test="${image.registeredStartsCount > 0}">
+  <br/>
+  Launch to registration: last <c:out value="${image.lastRegistrationLatency}"/>ms,
+  average <c:out value="${image.averageRegistrationLatency}"/>ms over <c:out value="${image.registeredStartsCount}"/> starts
+  <c:if test="${image.cdsStartsCount > 0}">
+    (<c:out value="${image.averageCdsRegistrationLatency}"/>ms over <c:out value="${image.cdsStartsCount}"/> starts with the class data sharing archive,
+    <c:out value="${image.averageNoCdsRegistrationLatency}"/>ms without)
+  </c:if>
+</c:if>
+<c:set var="metrics" value="${image.metrics}"/>
+<c:if test="${metrics.startsCount > 0}">
+  <br/>
+  Start phases over <c:out value="${metrics.startsCount}"/> starts
+  (<c:out value="${metrics.warmStartsCount}"/> from warm folders), median / 95th percentile / max:
+  <c:forEach items="${metrics.recordedHistograms}" var="phase" varStatus="status">
+    <c:out value="${phase.key.displayName}"/> <c:out value="${phase.value.medianMs}"/> / <c:out value="${phase.value.p95Ms}"/> / <c:out value="${phase.value.maxMs}"/>ms<c:if test="${not status.last}">,</c:if>
+  </c:forEach>
+  <c:if test="${metrics.failuresCount > 0}">
+    <br/>
+    Failures:
+    <c:forEach items="${metrics.failuresByCause}" var="failure" varStatus="status">
+      <c:out value="${failure.key}"/> <c:out value="${failure.value}"/><c:if test="${not status.last}">,</c:if>
+    </c:forEach>
+  </c:if>
+</c:if>
+<br/>
+Disk: <fmt:formatNumber value="${image.diskUsage div 1048576}" maxFractionDigits="0"/>MB used by the image folders
+<c:if test="${image.diskCapBytes > 0}">
+  of <fmt:formatNumber value="${image.diskCapBytes div 1048576}" maxFractionDigits="0"/>MB cap
+</c:if>
+<c:if test="${image.diskBudget.budgetBytes > 0}">
+  (all images: <fmt:formatNumber value="${image.diskBudget.usedBytes div 1048576}" maxFractionDigits="0"/>MB
+  of <fmt:formatNumber value="${image.diskBudget.budgetBytes div 1048576}" maxFractionDigits="0"/>MB budget,
+  <c:out value="${image.diskBudget.evictedInstances}"/> idle instances evicted)
+</c:if>
+<br/>
+Folder deletion: <fmt:formatNumber value="${image.diskReclaimer.reclaimedBytes div 1048576}" maxFractionDigits="0"/>MB reclaimed
+from <c:out value="${image.diskReclaimer.reclaimedDirs}"/> folders, <c:out value="${image.diskReclaimer.backlog}"/> waiting
+<c:if test="${image.diskReclaimer.failedDirs > 0}">, <c:out value="${image.diskReclaimer.failedDirs}"/> failed</c:if>
+<c:if test="${not image.cgroupLimits.empty}">
+  <br/>
+  cgroup limits: <c:out value="${image.cgroupLimits}"/>
+  <c:choose>
+    <c:when test="${not empty image.agentCgroups.problem}">(not applied: <c:out value="${image.agentCgroups.problem}"/>)</c:when>
+    <c:when test="${empty image.agentCgroups.root}">(not applied: cgroup root is not set in the profile)</c:when>
+  </c:choose>
+</c:if>
+<c:if test="${image.cpusPerInstance > 0}">
+  <br/>
+  CPU placement: <c:out value="${image.cpusPerInstance}"/> CPUs per instance,
+  <c:choose>
+    <c:when test="${image.cpuPlacement.supported}">
+      <c:out value="${image.cpuPlacement.assignedCpusCount}"/> of <c:out value="${image.cpuPlacement.totalCpusCount}"/> CPUs assigned to instances of all images,
+      reserved for the server: <c:out value="${empty image.cpuPlacement.reservedCpuList ? 'none' : image.cpuPlacement.reservedCpuList}"/>
+    </c:when>
+    <c:otherwise>CPU topology is not available on this machine, instances are not pinned</c:otherwise>
+  </c:choose>
+</c:if>
+<c:forEach items="${image.instances}" var="instance">
+  <c:set var="cpuSet" value="${instance.cpuSet}"/>
+  <c:if test="${not empty cpuSet}">
+    <br/>
+    Instance <c:out value="${instance.instanceId}"/> runs on CPUs <c:out value="${cpuSet}"/>
+  </c:if>
+  <c:set var="cgroupStats" value="${instance.cgroupStats}"/>
+  <c:if test="${not empty cgroupStats}">
+    <br/>
+    Instance <c:out value="${instance.instanceId}"/> cgroup: CPU time <fmt:formatNumber value="${cgroupStats.cpuTimeMs div 1000}" maxFractionDigits="0"/>s,
+    memory <c:out value="${cgroupStats.memoryPeak ? 'peak' : 'now'}"/> <fmt:formatNumber value="${cgroupStats.memoryBytes div 1048576}" maxFractionDigits="0"/>MB,
+    <c:out value="${cgroupStats.oomKills}"/> OOM kills
+  </c:if>
+  <c:if test="${not empty instance.cgroupProblem}">
+    <br/>
+    Instance <c:out value="${instance.instanceId}"/> runs without cgroup limits: <c:out value="${instance.cgroupProblem}"/>
+  </c:if>
+  <c:set var="launcherOutput" value="${instance.launcherOutputTail}"/>
+  <c:if test="${not empty launcherOutput}">
+    <br/>
+    Agent script output of instance <c:out value="${instance.instanceId}"/>:
+    <pre><c:out value="${launcherOutput}"/></pre>
+  </c:if>
+</c:forEach>
+<c:if test="${not empty image.lastRejectionReason}">
+  <br/>
+  New instances are not started: <c:out value="${image.lastRejectionReason}"/>
+  (checked at <fmt:formatDate value="${image.lastRejectionTime}" pattern="HH:mm:ss"/>)
+</c:if>
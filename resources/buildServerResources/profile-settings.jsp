@@ -5,6 +5,14 @@
 <%@ taglib prefix="c" uri="http://java.sun.com/jsp/jstl/core" %>
 
 <c:set var="paramName" value="<%=LocalCloudConstants.IMAGES_PROFILE_SETTING%>"/>
+<c:set var="threadsParamName" value="<%=LocalCloudConstants.PROVISIONING_THREADS_PROFILE_SETTING%>"/>
+<c:set var="launchesParamName" value="<%=LocalCloudConstants.LAUNCHES_PER_SECOND_PROFILE_SETTING%>"/>
+<c:set var="maxInstancesParamName" value="<%=LocalCloudConstants.MAX_INSTANCES_PROFILE_SETTING%>"/>
+<c:set var="maxLoadParamName" value="<%=LocalCloudConstants.MAX_LOAD_PER_CORE_PROFILE_SETTING%>"/>
+<c:set var="minFreeDiskParamName" value="<%=LocalCloudConstants.MIN_FREE_DISK_MB_PROFILE_SETTING%>"/>
+<c:set var="diskBudgetParamName" value="<%=LocalCloudConstants.DISK_BUDGET_MB_PROFILE_SETTING%>"/>
+<c:set var="cgroupRootParamName" value="<%=LocalCloudConstants.CGROUP_ROOT_PROFILE_SETTING%>"/>
+<c:set var="reservedCpusParamName" value="<%=LocalCloudConstants.RESERVED_CPUS_PROFILE_SETTING%>"/>
 
 <tr>
   <th><label for="${paramName}">Agent images:</label></th>
@@ -26,6 +34,98 @@
       <strong>agentPoolId:&lt;agent pool id&gt;</strong> to authorize cloud agents in a pool with specified id
       <br/>
       <strong>prop:&lt;agent property&gt;=&lt;value&gt;</strong> additional property for <em>buildAgent.configuration</em> file
+      <br/>
+      <strong>warm=&lt;number&gt;</strong> number of agent folders to prepare in advance, so a new instance only has to patch agent properties and start
+      <br/>
+      <strong>max=&lt;number&gt;</strong> maximum number of running instances of the image
+      <br/>
+      <strong>sharedCache=&lt;name&gt;:&lt;path&gt;</strong> dependency cache folder shared by all instances, can be repeated.
+      Names <em>maven</em>, <em>gradle</em>, <em>npm</em>, <em>yarn</em>, <em>pip</em> and <em>nuget</em> point the tool to the folder,
+      every cache is also available to builds as <em>env.LOCAL_CLOUD_CACHE_&lt;NAME&gt;</em>
+      <br/>
+      <strong>capture</strong> to clone new instances from the agent files of the first instance upgraded by the server, so they start with up-to-date plugins
+      <br/>
+      <strong>launch=&lt;script|direct&gt;</strong> how the agent is started, <em>script</em> runs <em>agent.sh</em> by default,
+      <em>direct</em> starts the agent launcher JVM directly with the bundled or the server JRE and stops it with a signal
+      <br/>
+      <strong>diskCap=&lt;megabytes&gt;</strong> maximum size of the image folders, the coldest and biggest folders of idle reusable instances are deleted above it
+      <br/>
+      <strong>cpus=&lt;number&gt;</strong> number of CPUs every instance is pinned to, taken from one NUMA node when possible, instances do not share CPUs
+      <br/>
+      <strong>cpuWeight=&lt;1-10000&gt;</strong>, <strong>cpuQuota=&lt;percent of one core&gt;</strong>, <strong>memoryMax=&lt;megabytes&gt;</strong>,
+      <strong>ioWeight=&lt;1-10000&gt;</strong> cgroup v2 limits of every instance, applied when the cgroup root is set
+      <br/>
+      <strong>autoRestart=&lt;number&gt;</strong> how many times in a row a reusable instance is restarted when its agent dies,
+      with a growing delay. Without it an instance with a dead agent is stopped. <strong>autoRestart</strong> alone means 3 restarts
+      <br/>
+      <strong>memory=&lt;megabytes&gt;</strong> expected memory usage of one instance, 512 by default. An instance is not started if the machine does not have that much memory available
+      <br/>
+      <strong>simulate=&lt;median ms&gt;,&lt;95th percentile ms&gt;[,&lt;failure percent&gt;]</strong> instances go through provisioning and status changes
+      without agent processes and become running after a random latency, e.g. to load-test the cloud with thousands of instances.
+      Simulated instances reserve no memory, skip the host load and disk checks and get no folders, combine with a higher launch rate. <strong>simulate</strong> alone means 5 seconds median and 15 seconds 95th percentile
+      <br/>
+      <strong>clone=&lt;reflink|hardlink|copy&gt;</strong> how agent libraries, plugins, launcher and JRE are cloned into a new instance, <em>copy</em> by default.
+      Falls back to <em>copy</em> if the filesystem does not support the mode. Hard links share files with the image, the linked files are made read-only so that agent upgrades replace them rather than modify the image; not available on Windows
     </span>
   </td>
-</tr>
\ No newline at end of file
+</tr>
+<tr>
+  <th><label for="${threadsParamName}">Provisioning threads:</label></th>
+  <td>
+    <props:textProperty name="${threadsParamName}" className="settings"/>
+    <span class="smallNote">Number of instances prepared and started in parallel, 4 by default</span>
+  </td>
+</tr>
+<tr>
+  <th><label for="${launchesParamName}">Agent launches per second:</label></th>
+  <td>
+    <props:textProperty name="${launchesParamName}" className="settings"/>
+    <span class="smallNote">Maximum rate of agent JVM launches, 2 by default</span>
+  </td>
+</tr>
+<tr>
+  <th><label for="${maxInstancesParamName}">Maximum instances:</label></th>
+  <td>
+    <props:textProperty name="${maxInstancesParamName}" className="settings"/>
+    <span class="smallNote">Maximum number of running instances of all images, not limited by default</span>
+  </td>
+</tr>
+<tr>
+  <th><label for="${maxLoadParamName}">Maximum load per core:</label></th>
+  <td>
+    <props:textProperty name="${maxLoadParamName}" className="settings"/>
+    <span class="smallNote">New instances are not started while the load average divided by the number of cores exceeds this value, 2 by default</span>
+  </td>
+</tr>
+<tr>
+  <th><label for="${minFreeDiskParamName}">Minimum free disk space (MB):</label></th>
+  <td>
+    <props:textProperty name="${minFreeDiskParamName}" className="settings"/>
+    <span class="smallNote">New instances are not started if there is less free space in the temporary folder, 1024 by default</span>
+  </td>
+</tr>
+<tr>
+  <th><label for="${diskBudgetParamName}">Disk budget (MB):</label></th>
+  <td>
+    <props:textProperty name="${diskBudgetParamName}" className="settings"/>
+    <span class="smallNote">Maximum size of all instance folders of the profile, not limited by default.
+      When exceeded, folders of idle reusable instances are deleted and new instances are not started</span>
+  </td>
+</tr>
+<tr>
+  <th><label for="${reservedCpusParamName}">Reserved CPUs:</label></th>
+  <td>
+    <props:textProperty name="${reservedCpusParamName}" className="settings"/>
+    <span class="smallNote">Number of CPUs never assigned to instances pinned with the <em>cpus</em> option, so the server keeps them, 2 by default</span>
+  </td>
+</tr>
+<tr>
+  <th><label for="${cgroupRootParamName}">cgroup root:</label></th>
+  <td>
+    <props:textProperty name="${cgroupRootParamName}" className="longField"/>
+    <span class="smallNote">cgroup v2 folder in the subtree delegated to the server user, e.g. of the server service with <em>Delegate=yes</em>.
+      The server process must run in a leaf group of that subtree and the root must be its sibling, e.g. the server in
+      <em>/sys/fs/cgroup/system.slice/teamcity.service/server</em> and instances under <em>/sys/fs/cgroup/system.slice/teamcity.service/agents</em>.
+      Every instance gets its own group under the root with the limits of its image</span>
+  </td>
+</tr>
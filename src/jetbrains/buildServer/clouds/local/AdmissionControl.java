@@ -0,0 +1,88 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import jetbrains.buildServer.clouds.CloudInstance;
+import jetbrains.buildServer.clouds.InstanceStatus;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.Collection;
+
+/**
+ * Decides whether one more instance can be started on the server machine.
+ * Checks image and profile instance limits, available memory against image memory footprints,
+ * load average, free disk space in the folder where instance folders are created and the profile disk budget.
+ * Simulated images are checked against instance limits only.
+ */
+public class AdmissionControl {
+  public static final double DEFAULT_MAX_LOAD_PER_CORE = 2;
+  public static final long DEFAULT_MIN_FREE_DISK_MB = 1024;
+
+  private final int myMaxInstances;
+  private final double myMaxLoadPerCore;
+  private final long myMinFreeDiskMb;
+  @NotNull private final File myInstancesBaseDir;
+  @NotNull private final DiskBudget myDiskBudget;
+
+  public AdmissionControl(final int maxInstances, final double maxLoadPerCore, final long minFreeDiskMb, @NotNull final DiskBudget diskBudget) {
+    myMaxInstances = maxInstances;
+    myDiskBudget = diskBudget;
+    myMaxLoadPerCore = maxLoadPerCore;
+    myMinFreeDiskMb = minFreeDiskMb;
+    myInstancesBaseDir = new File(System.getProperty("java.io.tmpdir"));
+  }
+
+  /**
+   * @return the reason why the instance of the image cannot be started or null if it can
+   */
+  @Nullable
+  public String getRejectionReason(@NotNull final LocalCloudImage image, @NotNull final Collection<LocalCloudImage> allImages) {
+    final int imageInstances = image.getActiveInstancesCount();
+    if (image.getMaxInstances() > 0 && imageInstances >= image.getMaxInstances()) {
+      return "image limit of " + image.getMaxInstances() + " instances is reached";
+    }
+
+    int totalInstances = 0;
+    long startingFootprintMb = 0;
+    for (LocalCloudImage someImage : allImages) {
+      totalInstances += someImage.getActiveInstancesCount();
+      for (CloudInstance instance : someImage.getInstances()) {
+        final InstanceStatus status = instance.getStatus();
+        if (status == InstanceStatus.SCHEDULED_TO_START || status == InstanceStatus.STARTING) {
+          startingFootprintMb += someImage.getMemoryFootprintMb();
+        }
+      }
+    }
+    if (myMaxInstances > 0 && totalInstances >= myMaxInstances) {
+      return "profile limit of " + myMaxInstances + " instances is reached";
+    }
+    //simulated instances take no host resources
+    if (image.getSimulation() != null) return null;
+
+    //agents which are still starting have not allocated their memory yet
+    final Long availableMemoryMb = HostCapacity.getAvailableMemoryMb();
+    if (availableMemoryMb != null && availableMemoryMb - startingFootprintMb < image.getMemoryFootprintMb()) {
+      return "not enough memory: " + availableMemoryMb + "MB available, " + startingFootprintMb + "MB reserved by starting instances, "
+             + image.getMemoryFootprintMb() + "MB required";
+    }
+
+    final double loadAverage = HostCapacity.getLoadAverage();
+    final double maxLoad = myMaxLoadPerCore * HostCapacity.getProcessorsCount();
+    if (myMaxLoadPerCore > 0 && loadAverage >= maxLoad) {
+      return "load average " + loadAverage + " exceeds " + maxLoad;
+    }
+
+    final long freeDiskMb = HostCapacity.getFreeDiskMb(myInstancesBaseDir);
+    if (freeDiskMb < myMinFreeDiskMb) {
+      return "not enough disk space in " + myInstancesBaseDir + ": " + freeDiskMb + "MB free, " + myMinFreeDiskMb + "MB required";
+    }
+
+    if (myDiskBudget.isExceeded()) {
+      return "instance folders take " + myDiskBudget.getUsedBytes() / 1024 / 1024 + "MB, disk budget is "
+             + myDiskBudget.getBudgetBytes() / 1024 / 1024 + "MB";
+    }
+    return null;
+  }
+}
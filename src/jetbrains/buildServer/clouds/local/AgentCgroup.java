@@ -0,0 +1,124 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * cgroup v2 group of one instance, see {@link AgentCgroups}.
+ * The launch command joins the group before it runs the agent, so the agent and all its builds are accounted and limited there.
+ */
+public class AgentCgroup {
+  @NotNull private final File myDir;
+  private final boolean myHasCpuSet;
+
+  AgentCgroup(@NotNull final File dir, final boolean hasCpuSet) {
+    myDir = dir;
+    myHasCpuSet = hasCpuSet;
+  }
+
+  @NotNull
+  public File getDir() {
+    return myDir;
+  }
+
+  /**
+   * @return true if the group confines its processes to the CPUs assigned to the instance
+   */
+  boolean hasCpuSet() {
+    return myHasCpuSet;
+  }
+
+  /**
+   * @return command prefix which moves itself into the group and then executes the rest of the command,
+   * the agent is started without limits if the group cannot be joined, see {@link #contains(long)}
+   */
+  @NotNull
+  List<String> getLaunchPrefix() {
+    return Arrays.asList("/bin/sh", "-c", "echo $$ > \"$0\" || echo \"Failed to join cgroup $0\" >&2; exec \"$@\"",
+                         new File(myDir, "cgroup.procs").getAbsolutePath());
+  }
+
+  /**
+   * @return current usage of the group, null if it cannot be read
+   */
+  @Nullable
+  Stats readStats() {
+    try {
+      final long cpuUsec = getLong(AgentCgroups.read(myDir, "cpu.stat"), "usage_usec");
+      final File peak = new File(myDir, "memory.peak");
+      //memory.peak appeared in Linux 5.19
+      final long memory = Long.parseLong(AgentCgroups.read(myDir, peak.isFile() ? "memory.peak" : "memory.current"));
+      final long oomKills = new File(myDir, "memory.events").isFile() ? getLong(AgentCgroups.read(myDir, "memory.events"), "oom_kill") : 0;
+      return new Stats(cpuUsec / 1000, memory, peak.isFile(), oomKills);
+    } catch (IOException e) {
+      return null;
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return true if the process is a member of the group, i.e. the launch prefix has managed to join it
+   */
+  boolean contains(final long pid) throws IOException {
+    for (String line : AgentCgroups.read(myDir, "cgroup.procs").split("\n")) {
+      if (line.trim().equals(String.valueOf(pid))) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Deletes the group, which is only possible once all its processes have exited
+   */
+  boolean remove() {
+    return myDir.delete();
+  }
+
+  private static long getLong(@NotNull final String keyValueLines, @NotNull final String key) {
+    for (String line : keyValueLines.split("\n")) {
+      final String[] parts = line.trim().split("\\s+");
+      if (parts.length == 2 && parts[0].equals(key)) return Long.parseLong(parts[1]);
+    }
+    return 0;
+  }
+
+  public static class Stats {
+    private final long myCpuTimeMs;
+    private final long myMemoryBytes;
+    private final boolean myIsMemoryPeak;
+    private final long myOomKills;
+
+    Stats(final long cpuTimeMs, final long memoryBytes, final boolean memoryPeak, final long oomKills) {
+      myCpuTimeMs = cpuTimeMs;
+      myMemoryBytes = memoryBytes;
+      myIsMemoryPeak = memoryPeak;
+      myOomKills = oomKills;
+    }
+
+    public long getCpuTimeMs() {
+      return myCpuTimeMs;
+    }
+
+    /**
+     * @return peak memory usage, or the current one on kernels which do not track the peak
+     */
+    public long getMemoryBytes() {
+      return myMemoryBytes;
+    }
+
+    public boolean isMemoryPeak() {
+      return myIsMemoryPeak;
+    }
+
+    public long getOomKills() {
+      return myOomKills;
+    }
+  }
+}
@@ -0,0 +1,194 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.SystemInfo;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * cgroup v2 sub-groups of instances of a cloud profile.
+ * <p/>
+ * A process may only be moved between groups by a user who can write <code>cgroup.procs</code> of their common
+ * ancestor, and a group with processes cannot distribute controllers to its children. So the working layout is
+ * a cgroup delegated to the server user, e.g. the server service with <code>Delegate=yes</code>, with the server
+ * moved into a leaf under it and the root of instance groups being a sibling of that leaf:
+ * <pre>
+ *   teamcity.service/         delegated to the server user
+ *     server/                 server process
+ *     agents/                 root configured in the profile, instance groups are created here
+ * </pre>
+ * A root outside the delegated subtree of the server is rejected, as agents could not join its groups.
+ */
+public class AgentCgroups {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(AgentCgroups.class);
+  @NotNull static final File CGROUP_FS = new File("/sys/fs/cgroup");
+  private static final String[] CONTROLLERS = {"cpu", "cpuset", "memory", "io"};
+
+  @Nullable private volatile File myRoot;
+  @Nullable private volatile String myProblem;
+  @NotNull private volatile Set<String> myControllers = new HashSet<String>();
+
+  /**
+   * @param rootPath cgroup to create instance groups under, empty to run instances without limits
+   */
+  public synchronized void setRoot(@Nullable final String rootPath) {
+    final File root = rootPath == null || rootPath.trim().isEmpty() ? null : new File(rootPath.trim());
+    if (root == null ? myRoot == null : root.equals(myRoot)) return;
+
+    myRoot = null;
+    myProblem = null;
+    myControllers = new HashSet<String>();
+    if (root == null) return;
+
+    try {
+      myControllers = enableControllers(root);
+      myRoot = root;
+      LOG.info("Local cloud instances are placed into cgroups under " + root + " with controllers " + myControllers);
+    } catch (IOException e) {
+      myProblem = e.getMessage();
+      LOG.warn("Local cloud instances run without cgroup limits. " + e.getMessage());
+    }
+  }
+
+  @Nullable
+  public File getRoot() {
+    return myRoot;
+  }
+
+  /**
+   * @return reason why the configured root cannot be used, null if it is used or not configured
+   */
+  @Nullable
+  public String getProblem() {
+    return myProblem;
+  }
+
+  /**
+   * Creates or updates the group of an instance
+   *
+   * @param cpuSet CPUs assigned to the instance, see {@link CpuPlacement}
+   * @return null if groups are not configured or there is nothing to limit
+   */
+  @Nullable
+  AgentCgroup create(@NotNull final String name, @NotNull final CgroupLimits limits, @Nullable final CpuSet cpuSet) throws IOException {
+    final File root = myRoot;
+    if (root == null || limits.isEmpty() && cpuSet == null) return null;
+
+    final File dir = new File(root, name);
+    if (!dir.isDirectory() && !dir.mkdir()) throw new IOException("Failed to create cgroup " + dir);
+
+    final Set<String> controllers = myControllers;
+    if (limits.getCpuWeight() > 0 && controllers.contains("cpu")) {
+      write(dir, "cpu.weight", String.valueOf(limits.getCpuWeight()));
+    }
+    if (limits.getCpuQuotaPercent() > 0 && controllers.contains("cpu")) {
+      write(dir, "cpu.max", (long)limits.getCpuQuotaPercent() * CgroupLimits.CPU_PERIOD_USEC / 100 + " " + CgroupLimits.CPU_PERIOD_USEC);
+    }
+    if (limits.getMemoryMaxMb() > 0 && controllers.contains("memory")) {
+      write(dir, "memory.max", String.valueOf((long)limits.getMemoryMaxMb() * 1024 * 1024));
+    }
+    if (limits.getIoWeight() > 0 && controllers.contains("io")) {
+      try {
+        write(dir, "io.weight", "default " + limits.getIoWeight());
+      } catch (IOException e) {
+        //io.weight needs the BFQ scheduler or io.cost, it is optional
+        LOG.debug("Failed to set io.weight of " + dir + ". " + e.getMessage());
+      }
+    }
+    final boolean hasCpuSet = cpuSet != null && controllers.contains("cpuset");
+    if (hasCpuSet) {
+      write(dir, "cpuset.cpus", cpuSet.getCpuList());
+      write(dir, "cpuset.mems", cpuSet.getNodeList());
+    }
+    return new AgentCgroup(dir, hasCpuSet);
+  }
+
+  /**
+   * @return existing group of an instance, e.g. of an agent started by the previous server run
+   */
+  @Nullable
+  AgentCgroup find(@NotNull final String name) {
+    final File root = myRoot;
+    if (root == null) return null;
+    final File dir = new File(root, name);
+    return dir.isDirectory() ? new AgentCgroup(dir, new File(dir, "cpuset.cpus").isFile()) : null;
+  }
+
+  @NotNull
+  private static Set<String> enableControllers(@NotNull final File root) throws IOException {
+    if (!SystemInfo.isLinux) throw new IOException("cgroups are only supported on Linux");
+    if (!new File(CGROUP_FS, "cgroup.controllers").isFile()) throw new IOException("cgroup v2 is not mounted at " + CGROUP_FS);
+    if (!root.toPath().normalize().startsWith(CGROUP_FS.toPath())) throw new IOException(root + " is not under " + CGROUP_FS);
+    if (!root.isDirectory() && !root.mkdirs()) throw new IOException("Failed to create cgroup " + root);
+    checkDelegated(root);
+
+    final Set<String> available = new HashSet<String>(Arrays.asList(read(root, "cgroup.controllers").split("\\s+")));
+    final Set<String> enabled = new HashSet<String>();
+    for (String controller : CONTROLLERS) {
+      if (!available.contains(controller)) {
+        LOG.warn("cgroup controller " + controller + " is not available in " + root);
+        continue;
+      }
+      try {
+        write(root, "cgroup.subtree_control", "+" + controller);
+        enabled.add(controller);
+      } catch (IOException e) {
+        LOG.warn("Failed to enable cgroup controller " + controller + " for children of " + root + ". " + e.getMessage());
+      }
+    }
+    if (enabled.isEmpty()) throw new IOException("No cgroup controllers can be enabled for children of " + root);
+    return enabled;
+  }
+
+  /**
+   * Checks that the server user may move processes from the server cgroup into groups under the root
+   */
+  private static void checkDelegated(@NotNull final File root) throws IOException {
+    final File serverGroup = getOwnCgroup();
+    if (serverGroup == null) return;
+
+    File ancestor = root.toPath().normalize().toFile();
+    while (ancestor != null && !serverGroup.toPath().startsWith(ancestor.toPath())) {
+      ancestor = ancestor.getParentFile();
+    }
+    if (ancestor == null || !Files.isWritable(new File(ancestor, "cgroup.procs").toPath())) {
+      throw new IOException("Agents cannot be moved from the server cgroup " + serverGroup + " into " + root +
+                            ", their common parent " + ancestor + " is not delegated to the server user");
+    }
+  }
+
+  /**
+   * @return cgroup v2 group of the server process, null if it is unknown
+   */
+  @Nullable
+  private static File getOwnCgroup() {
+    try {
+      for (String line : Files.readAllLines(new File("/proc/self/cgroup").toPath(), StandardCharsets.US_ASCII)) {
+        if (line.startsWith("0::")) return new File(CGROUP_FS, line.substring(3));
+      }
+    } catch (IOException e) {
+      LOG.debug("Failed to read cgroup of the server process. " + e.getMessage());
+    }
+    return null;
+  }
+
+  static void write(@NotNull final File dir, @NotNull final String file, @NotNull final String value) throws IOException {
+    Files.write(new File(dir, file).toPath(), value.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  @NotNull
+  static String read(@NotNull final File dir, @NotNull final String file) throws IOException {
+    return new String(Files.readAllBytes(new File(dir, file).toPath()), StandardCharsets.US_ASCII).trim();
+  }
+}
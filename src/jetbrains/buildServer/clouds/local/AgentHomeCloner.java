@@ -0,0 +1,211 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import com.intellij.execution.configurations.GeneralCommandLine;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.SystemInfo;
+import jetbrains.buildServer.ExecResult;
+import jetbrains.buildServer.SimpleCommandLineProcessRunner;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Clones agent home into an instance folder.
+ * Read-only parts of the agent are cloned with the requested {@link CloneMode},
+ * everything else (conf, bin scripts, etc.) is always copied as the instance modifies it.
+ */
+public class AgentHomeCloner {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(AgentHomeCloner.class);
+
+  @NotNull
+  static final Set<String> DIRS_NOT_TO_COPY = Collections.unmodifiableSet(new HashSet<String>() {{
+    Collections.addAll(this, "work", "temp", "system", "contrib");
+  }});
+
+  @NotNull
+  static final Set<String> READ_ONLY_DIRS = Collections.unmodifiableSet(new HashSet<String>() {{
+    Collections.addAll(this, "lib", "plugins", "launcher", "jre");
+  }});
+
+  /**
+   * @return clone mode which was actually used for the read-only parts,
+   * it differs from the requested one if filesystem does not support it
+   */
+  @NotNull
+  public static CloneMode cloneAgentHome(@NotNull final File agentHomeDir,
+                                         @NotNull final File destDir,
+                                         @NotNull final CloneMode mode) throws IOException {
+    final File[] files = agentHomeDir.listFiles();
+    if (files == null) throw new IOException("Failed to list files under " + agentHomeDir);
+
+    CloneMode effectiveMode = mode;
+    for (File file : files) {
+      final File dest = new File(destDir, file.getName());
+      if (file.isDirectory()) {
+        if (DIRS_NOT_TO_COPY.contains(file.getName())) continue;
+
+        if (effectiveMode != CloneMode.COPY && READ_ONLY_DIRS.contains(file.getName())) {
+          try {
+            cloneReadOnlyDir(file, dest, effectiveMode);
+            continue;
+          } catch (IOException e) {
+            LOG.warn("Failed to " + effectiveMode.getName() + " " + file + ", falling back to copy. " + e.getMessage());
+            FileUtil.delete(dest);
+            effectiveMode = CloneMode.COPY;
+          }
+        }
+        FileUtil.copyDir(file, dest);
+      } else {
+        FileUtil.copy(file, dest);
+      }
+    }
+    return effectiveMode;
+  }
+
+  /**
+   * Brings an instance folder in line with an updated template: files whose hash differs from the one the instance
+   * received are cloned again, files removed from the template are deleted, files the agent created itself are kept
+   *
+   * @return number of changed files
+   */
+  public static int syncAgentHome(@NotNull final File templateDir,
+                                  @NotNull final AgentManifest template,
+                                  @NotNull final File destDir,
+                                  @NotNull final AgentManifest received,
+                                  @NotNull final CloneMode mode) throws IOException {
+    int changed = 0;
+    for (String path : template.getPaths()) {
+      final AgentManifest.Entry entry = template.getEntry(path);
+      final AgentManifest.Entry receivedEntry = received.getEntry(path);
+      if (entry == null || receivedEntry != null && receivedEntry.getHash().equals(entry.getHash())) continue;
+
+      final Path source = new File(templateDir, path).toPath();
+      final Path target = new File(destDir, path).toPath();
+      Files.createDirectories(target.getParent());
+      //a hard link must be replaced rather than written through, otherwise the template is modified
+      Files.deleteIfExists(target);
+      if (mode == CloneMode.HARDLINK && READ_ONLY_DIRS.contains(path.substring(0, Math.max(0, path.indexOf('/'))))) {
+        createProtectedLink(target, source);
+      } else {
+        Files.copy(source, target, StandardCopyOption.COPY_ATTRIBUTES);
+        //the template file may be shared by hard links and thus read-only, the instance owns its copy
+        target.toFile().setWritable(true);
+      }
+      changed++;
+    }
+
+    for (String path : received.getPaths()) {
+      if (template.getEntry(path) != null) continue;
+      Files.deleteIfExists(new File(destDir, path).toPath());
+      changed++;
+    }
+    return changed;
+  }
+
+  /**
+   * Makes agent shell scripts executable, they may lose the attribute on copy or zip extraction
+   */
+  public static void updateScriptPermissions(@NotNull final File agentDir) {
+    if (SystemInfo.isWindows) return;
+
+    for (String dir : new String[]{"bin", "launcher/bin"}) {
+      final File basePath = new File(agentDir, dir);
+      final File[] files = basePath.listFiles(new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String name) {
+          return name.endsWith(".sh");
+        }
+      });
+
+      if (files == null) {
+        LOG.warn("Failed to list files under " + basePath);
+        continue;
+      }
+
+      for (File file : files) {
+        try {
+          FileUtil.setExectuableAttribute(file.getAbsolutePath(), true);
+        } catch (IOException e) {
+          LOG.warn("Failed to set writable permission for " + file + ". " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  private static void cloneReadOnlyDir(@NotNull final File source, @NotNull final File dest, @NotNull final CloneMode mode) throws IOException {
+    switch (mode) {
+      case REFLINK:
+        reflinkDir(source, dest);
+        break;
+      case HARDLINK:
+        hardlinkDir(source.toPath(), dest.toPath());
+        break;
+      default:
+        FileUtil.copyDir(source, dest);
+    }
+  }
+
+  private static void reflinkDir(@NotNull final File source, @NotNull final File dest) throws IOException {
+    final GeneralCommandLine cmd = new GeneralCommandLine();
+    if (SystemInfo.isLinux) {
+      cmd.setExePath("cp");
+      cmd.addParameters("-R", "--reflink=always");
+    } else if (SystemInfo.isMac) {
+      cmd.setExePath("cp");
+      cmd.addParameters("-c", "-R");
+    } else {
+      throw new IOException("reflink is not supported on this OS");
+    }
+    cmd.addParameters(source.getAbsolutePath(), dest.getAbsolutePath());
+
+    final ExecResult result = SimpleCommandLineProcessRunner.runCommand(cmd, null);
+    if (result.getExitCode() != 0) {
+      throw new IOException("cp exited with code " + result.getExitCode() + ": " + result.getStderr().trim());
+    }
+  }
+
+  private static void hardlinkDir(@NotNull final Path source, @NotNull final Path dest) throws IOException {
+    if (SystemInfo.isWindows) throw new IOException("linked files cannot be protected from agent upgrades on Windows");
+
+    Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) throws IOException {
+        Files.createDirectories(dest.resolve(source.relativize(dir)));
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+        final Path target = dest.resolve(source.relativize(file));
+        if (attrs.isSymbolicLink()) {
+          Files.copy(file, target, LinkOption.NOFOLLOW_LINKS);
+        } else {
+          createProtectedLink(target, file);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  /**
+   * Links the file and makes the shared inode read-only: the agent upgrade may only replace the file,
+   * writing through the link would modify the image and all sibling instances
+   */
+  private static void createProtectedLink(@NotNull final Path link, @NotNull final Path file) throws IOException {
+    if (Files.isWritable(file) && !file.toFile().setWritable(false, false)) {
+      throw new IOException("Failed to make " + file + " read-only");
+    }
+    Files.createLink(link, file);
+  }
+}
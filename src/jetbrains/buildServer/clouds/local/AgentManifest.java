@@ -0,0 +1,212 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Size, modification time and hash of every agent file which comes from an image template.
+ * Instance folders keep the manifest of the files they received, so once the template is updated
+ * a reusable instance gets only the changed files. Folders the agent modifies itself
+ * (work, temp, system, logs and the agent properties) are not listed.
+ */
+public class AgentManifest {
+  static final String FILE_NAME = ".local-cloud-manifest";
+  static final String AGENT_PROPERTIES_PATH = "conf/buildAgent.properties";
+
+  @NotNull private final Map<String, Entry> myEntries = new TreeMap<String, Entry>();
+  @Nullable private String myVersion;
+
+  private AgentManifest() {
+  }
+
+  /**
+   * Lists agent files under the folder, hashes of files with the same size and modification time
+   * are taken from the previous manifest of the same folder
+   */
+  @NotNull
+  public static AgentManifest build(@NotNull final File dir, @Nullable final AgentManifest previous) throws IOException {
+    final AgentManifest manifest = new AgentManifest();
+    final Path root = dir.toPath();
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(final Path subDir, final BasicFileAttributes attrs) {
+        return subDir.equals(root) || isIncluded(getRelativePath(root, subDir) + "/") ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+        if (!attrs.isRegularFile()) return FileVisitResult.CONTINUE;
+
+        final String path = getRelativePath(root, file);
+        if (!isIncluded(path)) return FileVisitResult.CONTINUE;
+
+        final long mtime = attrs.lastModifiedTime().toMillis();
+        final Entry known = previous == null ? null : previous.myEntries.get(path);
+        final boolean unchanged = known != null && known.getSize() == attrs.size() && known.getLastModified() == mtime;
+        manifest.myEntries.put(path, new Entry(attrs.size(), mtime, unchanged ? known.getHash() : hash(file.toFile())));
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return manifest;
+  }
+
+  /**
+   * @return manifest saved in the agent folder or null if there is no readable one
+   */
+  @Nullable
+  public static AgentManifest load(@NotNull final File dir) {
+    final File file = new File(dir, FILE_NAME);
+    if (!file.isFile()) return null;
+
+    final AgentManifest manifest = new AgentManifest();
+    BufferedReader reader = null;
+    try {
+      reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        final String[] parts = line.split("\t", 4);
+        if (parts.length != 4) return null;
+        manifest.myEntries.put(parts[3], new Entry(Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[0]));
+      }
+      return manifest;
+    } catch (IOException e) {
+      return null;
+    } catch (NumberFormatException e) {
+      return null;
+    } finally {
+      FileUtil.close(reader);
+    }
+  }
+
+  public void save(@NotNull final File dir) throws IOException {
+    final File file = new File(dir, FILE_NAME);
+    final File tmp = new File(dir, FILE_NAME + ".tmp");
+    final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8));
+    try {
+      for (Map.Entry<String, Entry> e : myEntries.entrySet()) {
+        final Entry entry = e.getValue();
+        writer.write(entry.getHash() + "\t" + entry.getSize() + "\t" + entry.getLastModified() + "\t" + e.getKey() + "\n");
+      }
+    } finally {
+      writer.close();
+    }
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  @NotNull
+  public Set<String> getPaths() {
+    return Collections.unmodifiableSet(myEntries.keySet());
+  }
+
+  @Nullable
+  public Entry getEntry(@NotNull final String path) {
+    return myEntries.get(path);
+  }
+
+  public int size() {
+    return myEntries.size();
+  }
+
+  /**
+   * @return hash of paths and hashes of all files, it changes with any change of the content
+   */
+  @NotNull
+  public synchronized String getVersion() {
+    if (myVersion == null) {
+      final MessageDigest digest = createDigest();
+      for (Map.Entry<String, Entry> e : myEntries.entrySet()) {
+        digest.update((e.getKey() + "\t" + e.getValue().getHash() + "\n").getBytes(StandardCharsets.UTF_8));
+      }
+      myVersion = toHex(digest.digest());
+    }
+    return myVersion;
+  }
+
+  /**
+   * @param path relative path with '/' separators, folders end with '/'
+   * @return true if the file comes from the template and is not modified by the agent
+   */
+  static boolean isIncluded(@NotNull final String path) {
+    if (path.equals(FILE_NAME) || path.equals(FILE_NAME + ".tmp") || path.equals(AGENT_PROPERTIES_PATH)) return false;
+    final int slash = path.indexOf('/');
+    if (slash < 0) return true;
+    final String topDir = path.substring(0, slash);
+    return !AgentHomeCloner.DIRS_NOT_TO_COPY.contains(topDir) && !topDir.equals("logs");
+  }
+
+  @NotNull
+  private static String getRelativePath(@NotNull final Path root, @NotNull final Path file) {
+    return root.relativize(file).toString().replace(File.separatorChar, '/');
+  }
+
+  @NotNull
+  private static String hash(@NotNull final File file) throws IOException {
+    final MessageDigest digest = createDigest();
+    final InputStream in = new FileInputStream(file);
+    try {
+      final byte[] buffer = new byte[64 * 1024];
+      int read;
+      while ((read = in.read(buffer)) > 0) {
+        digest.update(buffer, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+    return toHex(digest.digest());
+  }
+
+  @NotNull
+  private static MessageDigest createDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      //every JRE has SHA-1
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @NotNull
+  private static String toHex(@NotNull final byte[] bytes) {
+    final StringBuilder sb = new StringBuilder();
+    for (byte b : bytes) {
+      sb.append(String.format("%02x", b & 0xff));
+    }
+    return sb.toString();
+  }
+
+  public static class Entry {
+    private final long mySize;
+    private final long myLastModified;
+    @NotNull private final String myHash;
+
+    public Entry(final long size, final long lastModified, @NotNull final String hash) {
+      mySize = size;
+      myLastModified = lastModified;
+      myHash = hash;
+    }
+
+    public long getSize() {
+      return mySize;
+    }
+
+    public long getLastModified() {
+      return myLastModified;
+    }
+
+    @NotNull
+    public String getHash() {
+      return myHash;
+    }
+  }
+}
@@ -0,0 +1,213 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import com.intellij.execution.configurations.GeneralCommandLine;
+import com.intellij.openapi.util.SystemInfo;
+import jetbrains.buildServer.ExecResult;
+import jetbrains.buildServer.SimpleCommandLineProcessRunner;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Locates agent processes of instance folders
+ */
+public class AgentProcesses {
+  private static final int TAIL_BYTES = 16 * 1024;
+  private static final long LAUNCHER_LOG_MAX_SIZE = 1024 * 1024;
+  private static final int LAUNCHER_LOG_BACKUPS = 3;
+
+  /**
+   * @return pid written by the agent launcher into <code>logs/buildAgent.pid</code> or null if there is no such file
+   */
+  @Nullable
+  public static Long readPid(@NotNull final File agentDir) {
+    final File pidFile = getPidFile(agentDir);
+    if (!pidFile.isFile()) return null;
+    try {
+      return Long.parseLong(FileUtil.readText(pidFile).trim());
+    } catch (IOException e) {
+      return null;
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  @NotNull
+  public static File getPidFile(@NotNull final File agentDir) {
+    return new File(new File(agentDir, "logs"), "buildAgent.pid");
+  }
+
+  @NotNull
+  public static File getAgentLogFile(@NotNull final File agentDir) {
+    return new File(new File(agentDir, "logs"), "teamcity-agent.log");
+  }
+
+  /**
+   * @return file the output of agent scripts run by the plugin is appended to
+   */
+  @NotNull
+  public static File getLauncherLogFile(@NotNull final File agentDir) {
+    return new File(new File(agentDir, "logs"), "local-cloud-launcher.log");
+  }
+
+  /**
+   * Rotates the launcher log once it is too big and appends a header for the next command.
+   * The log is copied and truncated rather than renamed: a running launcher keeps it open for appending.
+   *
+   * @return launcher log file
+   */
+  @NotNull
+  public static File prepareLauncherLog(@NotNull final File agentDir, @NotNull final List<String> command) throws IOException {
+    final File log = getLauncherLogFile(agentDir);
+    FileUtil.createParentDirs(log);
+    if (log.length() > LAUNCHER_LOG_MAX_SIZE) {
+      FileUtil.delete(new File(log.getPath() + "." + LAUNCHER_LOG_BACKUPS));
+      for (int i = LAUNCHER_LOG_BACKUPS - 1; i >= 1; i--) {
+        final File backup = new File(log.getPath() + "." + i);
+        if (backup.isFile() && !backup.renameTo(new File(log.getPath() + "." + (i + 1)))) {
+          FileUtil.delete(backup);
+        }
+      }
+      FileUtil.copy(log, new File(log.getPath() + ".1"));
+      final RandomAccessFile raf = new RandomAccessFile(log, "rw");
+      try {
+        raf.setLength(0);
+      } finally {
+        raf.close();
+      }
+    }
+
+    final Writer writer = new OutputStreamWriter(new FileOutputStream(log, true), "UTF-8");
+    try {
+      writer.write("[" + new Date() + "] " + command + "\n");
+    } finally {
+      writer.close();
+    }
+    return log;
+  }
+
+  /**
+   * @return true if processes recorded in pid files can be trusted and checked cheaply on this OS,
+   * on Windows {@link #isAlive(Long)} runs <code>tasklist</code> and is used only to wait for a stopped agent
+   */
+  public static boolean canCheckAlive() {
+    return !SystemInfo.isWindows;
+  }
+
+  /**
+   * @return up to the given number of last lines of the file, empty string if it cannot be read
+   */
+  @NotNull
+  public static String readTail(@NotNull final File file, final int maxLines) {
+    if (!file.isFile()) return "";
+    try {
+      final RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+        final long length = raf.length();
+        final int toRead = (int)Math.min(length, TAIL_BYTES);
+        final byte[] bytes = new byte[toRead];
+        raf.seek(length - toRead);
+        raf.readFully(bytes);
+        final String[] lines = new String(bytes, "UTF-8").split("\r?\n");
+        final StringBuilder sb = new StringBuilder();
+        for (int i = Math.max(0, lines.length - maxLines); i < lines.length; i++) {
+          sb.append(lines[i]).append('\n');
+        }
+        return sb.toString();
+      } finally {
+        raf.close();
+      }
+    } catch (IOException e) {
+      return "";
+    }
+  }
+
+  /**
+   * Asks the process to exit, the agent launcher stops the agent on this signal
+   *
+   * @return false if the signal cannot be sent
+   */
+  public static boolean kill(final long pid) {
+    if (pid <= 0 || SystemInfo.isWindows) return false;
+
+    final GeneralCommandLine cmd = new GeneralCommandLine();
+    cmd.setExePath("kill");
+    cmd.addParameters(String.valueOf(pid));
+    return SimpleCommandLineProcessRunner.runCommand(cmd, null).getExitCode() == 0;
+  }
+
+  /**
+   * A pid file which survived a reboot may point to an unrelated process, so the process is trusted only
+   * if its working directory or command line is in the agent folder
+   *
+   * @return false if the process does not exist or was not started from the folder
+   */
+  public static boolean isAgentProcess(@Nullable final Long pid, @NotNull final File agentDir) {
+    if (!isAlive(pid)) return false;
+    final String dirPath = getCanonicalPath(agentDir);
+
+    if (SystemInfo.isLinux) {
+      try {
+        final String cwd = Files.readSymbolicLink(Paths.get("/proc", String.valueOf(pid), "cwd")).toString();
+        if (isUnder(cwd, dirPath)) return true;
+      } catch (IOException e) {
+        //a process of another user
+      }
+      try {
+        final String cmdline = new String(Files.readAllBytes(Paths.get("/proc", String.valueOf(pid), "cmdline")), "UTF-8");
+        return cmdline.contains(dirPath) || cmdline.contains(agentDir.getAbsolutePath());
+      } catch (IOException e) {
+        return false;
+      }
+    }
+
+    final GeneralCommandLine cmd = new GeneralCommandLine();
+    cmd.setExePath("ps");
+    cmd.addParameters("-o", "command=", "-p", String.valueOf(pid));
+    final ExecResult result = SimpleCommandLineProcessRunner.runCommand(cmd, null);
+    final String command = result.getExitCode() == 0 ? result.getStdout() : null;
+    return command != null && (command.contains(dirPath) || command.contains(agentDir.getAbsolutePath()));
+  }
+
+  private static boolean isUnder(@NotNull final String path, @NotNull final String dirPath) {
+    return path.equals(dirPath) || path.startsWith(dirPath + File.separator);
+  }
+
+  @NotNull
+  private static String getCanonicalPath(@NotNull final File file) {
+    try {
+      return file.getCanonicalPath();
+    } catch (IOException e) {
+      return file.getAbsolutePath();
+    }
+  }
+
+  /**
+   * @return false if the process does not exist, pid is unknown or process state cannot be checked
+   */
+  public static boolean isAlive(@Nullable final Long pid) {
+    if (pid == null || pid <= 0) return false;
+    if (SystemInfo.isLinux) return new File("/proc/" + pid).isDirectory();
+    if (SystemInfo.isWindows) {
+      final GeneralCommandLine cmd = new GeneralCommandLine();
+      cmd.setExePath("tasklist");
+      cmd.addParameters("/FI", "PID eq " + pid, "/FO", "CSV", "/NH");
+      final ExecResult result = SimpleCommandLineProcessRunner.runCommand(cmd, null);
+      final String stdout = result.getExitCode() == 0 ? result.getStdout() : null;
+      return stdout != null && stdout.contains("\"" + pid + "\"");
+    }
+
+    final GeneralCommandLine cmd = new GeneralCommandLine();
+    cmd.setExePath("kill");
+    cmd.addParameters("-0", String.valueOf(pid));
+    return SimpleCommandLineProcessRunner.runCommand(cmd, null).getExitCode() == 0;
+  }
+}
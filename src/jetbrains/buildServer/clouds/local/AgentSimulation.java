@@ -0,0 +1,69 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Start behaviour of simulated instances, which go through provisioning and status transitions without agent processes.
+ * The launch to registration latency is log-normal, given by its median and 95th percentile, a start fails with the given probability.
+ */
+public class AgentSimulation {
+  public static final int DEFAULT_MEDIAN_MS = 5000;
+  public static final int DEFAULT_P95_MS = 15000;
+  private static final double Z_95 = 1.6449;
+
+  private final int myMedianMs;
+  private final int myP95Ms;
+  private final double myFailurePercent;
+
+  public AgentSimulation(final int medianMs, final int p95Ms, final double failurePercent) {
+    myMedianMs = medianMs;
+    myP95Ms = Math.max(medianMs, p95Ms);
+    myFailurePercent = failurePercent;
+  }
+
+  public int getMedianMs() {
+    return myMedianMs;
+  }
+
+  public int getP95Ms() {
+    return myP95Ms;
+  }
+
+  public double getFailurePercent() {
+    return myFailurePercent;
+  }
+
+  long nextLatencyMs() {
+    if (myMedianMs == 0 || myP95Ms == myMedianMs) return myMedianMs;
+    final double sigma = Math.log((double)myP95Ms / myMedianMs) / Z_95;
+    return Math.round(myMedianMs * Math.exp(sigma * ThreadLocalRandom.current().nextGaussian()));
+  }
+
+  boolean nextFailure() {
+    return ThreadLocalRandom.current().nextDouble() * 100 < myFailurePercent;
+  }
+
+  @NotNull
+  @Override
+  public String toString() {
+    return "median " + myMedianMs + "ms, 95th percentile " + myP95Ms + "ms, " + myFailurePercent + "% failures";
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+
+    final AgentSimulation that = (AgentSimulation)o;
+    return myMedianMs == that.myMedianMs && myP95Ms == that.myP95Ms && Double.compare(myFailurePercent, that.myFailurePercent) == 0;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * (31 * myMedianMs + myP95Ms) + Double.valueOf(myFailurePercent).hashCode();
+  }
+}
@@ -0,0 +1,167 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.clouds.InstanceStatus;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.PropertiesUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Application class data sharing archive of the agent JVM of an image.
+ * <p/>
+ * The first instance launched for a template version trains the archive: its agent JVM dumps loaded classes
+ * with <code>-XX:ArchiveClassesAtExit</code> when it exits. Afterwards instances are launched with
+ * <code>-XX:SharedArchiveFile</code>, so their JVMs map the classes instead of loading and verifying them.
+ * A template change produces a new version and a new archive, old archives are deleted.
+ * <p/>
+ * Every instance has its own folder, so the archive is mapped with the class path at another location than
+ * the one it was dumped with, which JVMs accept since Java 19. With <code>-Xshare:auto</code> the JVM silently ignores
+ * an archive it cannot map, so the agent JVM logs the archive mapping and {@link #isArchiveMapped(File)} tells
+ * whether the archive was actually used.
+ */
+public class CdsArchive {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(CdsArchive.class);
+  //relocated class path of a dynamic archive is accepted since Java 19
+  private static final int MIN_JAVA_VERSION = 19;
+  private static final String MAPPING_LOG = "cds.log";
+  private static final String MAPPED_MARKER = "Mapped dynamic region";
+  private static final String ARCHIVE_SUFFIX = ".jsa";
+  private static final String TRAINING_SUFFIX = ".training";
+  private static final Pattern JAVA_VERSION = Pattern.compile("^(?:1\\.)?(\\d+)");
+
+  @NotNull private final LocalCloudImage myImage;
+  @NotNull private final File myDir;
+  @Nullable private LocalCloudInstance myTrainer;
+  @Nullable private File myTrainingFile;
+
+  public CdsArchive(@NotNull final LocalCloudImage image, @NotNull final File dir) {
+    myImage = image;
+    myDir = dir;
+  }
+
+  /**
+   * @return agent JVM options for the next launch of the instance, empty if the archive cannot be used
+   */
+  @NotNull
+  synchronized String getAgentOptions(@NotNull final LocalCloudInstance instance, @NotNull final File agentDir) {
+    final Integer javaVersion = getJavaMajorVersion(DirectAgentLauncher.getJavaHome(agentDir));
+    if (javaVersion == null || javaVersion < MIN_JAVA_VERSION) return "";
+    if (myDir.getAbsolutePath().matches(".*\\s.*") || agentDir.getAbsolutePath().matches(".*\\s.*")) return "";
+
+    final String version;
+    try {
+      version = myImage.getTemplateVersion();
+    } catch (IOException e) {
+      LOG.warn("Failed to compute template version of image " + myImage.getName() + ". " + e.getMessage());
+      return "";
+    }
+
+    final File archive = new File(myDir, version + ARCHIVE_SUFFIX);
+    if (archive.isFile()) {
+      final File mappingLog = getMappingLog(agentDir);
+      FileUtil.delete(mappingLog);
+      return "-XX:SharedArchiveFile=" + archive.getAbsolutePath() + " -Xshare:auto" +
+             " -Xlog:cds=info:file=\"" + mappingLog.getAbsolutePath() + "\"::filecount=0";
+    }
+
+    if (myTrainer != null && myTrainer != instance && isActive(myTrainer)) return "";
+    if (!myDir.isDirectory() && !myDir.mkdirs()) return "";
+
+    myTrainer = instance;
+    myTrainingFile = new File(myDir, version + ARCHIVE_SUFFIX + TRAINING_SUFFIX);
+    FileUtil.delete(myTrainingFile);
+    LOG.info("Agent JVM of " + instance + " will train class data sharing archive " + archive);
+    return "-XX:ArchiveClassesAtExit=" + myTrainingFile.getAbsolutePath();
+  }
+
+  /**
+   * Publishes the archive once the agent JVM of the training instance has exited and written it
+   */
+  synchronized void agentExited(@NotNull final LocalCloudInstance instance) {
+    if (myTrainer != instance || myTrainingFile == null) return;
+
+    final File training = myTrainingFile;
+    myTrainer = null;
+    myTrainingFile = null;
+    if (!training.isFile() || training.length() == 0) {
+      LOG.info("Agent JVM of " + instance + " has not written class data sharing archive " + training);
+      return;
+    }
+
+    final String archiveName = training.getName().substring(0, training.getName().length() - TRAINING_SUFFIX.length());
+    final File archive = new File(myDir, archiveName);
+    if (!training.renameTo(archive)) {
+      LOG.warn("Failed to rename " + training + " to " + archive);
+      FileUtil.delete(training);
+      return;
+    }
+    LOG.info("Class data sharing archive " + archive + " is ready for image " + myImage.getName());
+
+    final File[] files = myDir.listFiles();
+    if (files == null) return;
+    for (File file : files) {
+      if (!file.equals(archive) && !file.getName().endsWith(TRAINING_SUFFIX)) {
+        FileUtil.delete(file);
+      }
+    }
+  }
+
+  /**
+   * @return true if the agent JVM launched with the archive has mapped it, false if it has silently ignored it,
+   * e.g. because the archive does not match its class path
+   */
+  static boolean isArchiveMapped(@NotNull final File agentDir) {
+    final File mappingLog = getMappingLog(agentDir);
+    try {
+      return mappingLog.isFile() && FileUtil.readText(mappingLog).contains(MAPPED_MARKER);
+    } catch (IOException e) {
+      LOG.debug("Failed to read " + mappingLog + ". " + e.getMessage());
+      return false;
+    }
+  }
+
+  @NotNull
+  static File getMappingLog(@NotNull final File agentDir) {
+    return new File(new File(agentDir, "logs"), MAPPING_LOG);
+  }
+
+  private static boolean isActive(@NotNull final LocalCloudInstance instance) {
+    final InstanceStatus status = instance.getStatus();
+    return status != InstanceStatus.STOPPED && status != InstanceStatus.ERROR && status != InstanceStatus.ERROR_CANNOT_STOP;
+  }
+
+  /**
+   * @return major version of the JRE from its <code>release</code> file, null if it is unknown
+   */
+  @Nullable
+  static Integer getJavaMajorVersion(@NotNull final File javaHome) {
+    String version = null;
+    final File release = new File(javaHome, "release");
+    if (release.isFile()) {
+      try {
+        final Properties props = PropertiesUtil.loadProperties(release);
+        final String value = props.getProperty("JAVA_VERSION");
+        if (value != null) version = value.replace("\"", "").trim();
+      } catch (IOException e) {
+        //version is unknown
+      }
+    }
+    if (version == null && javaHome.equals(new File(System.getProperty("java.home")))) {
+      version = System.getProperty("java.specification.version");
+    }
+    if (version == null) return null;
+
+    final Matcher matcher = JAVA_VERSION.matcher(version);
+    return matcher.find() ? Integer.parseInt(matcher.group(1)) : null;
+  }
+}
@@ -0,0 +1,59 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+/**
+ * cgroup v2 limits of one instance of an image, 0 means the limit is not set
+ */
+public class CgroupLimits {
+  public static final CgroupLimits NONE = new CgroupLimits(0, 0, 0, 0);
+  static final int CPU_PERIOD_USEC = 100000;
+
+  private final int myCpuWeight;
+  private final int myCpuQuotaPercent;
+  private final int myMemoryMaxMb;
+  private final int myIoWeight;
+
+  /**
+   * @param cpuWeight       relative CPU share, 1..10000, 100 is the kernel default
+   * @param cpuQuotaPercent CPU time limit in percents of one core
+   * @param memoryMaxMb     memory limit of the agent and its builds
+   * @param ioWeight        relative IO share, 1..10000, 100 is the kernel default
+   */
+  public CgroupLimits(final int cpuWeight, final int cpuQuotaPercent, final int memoryMaxMb, final int ioWeight) {
+    myCpuWeight = cpuWeight;
+    myCpuQuotaPercent = cpuQuotaPercent;
+    myMemoryMaxMb = memoryMaxMb;
+    myIoWeight = ioWeight;
+  }
+
+  public int getCpuWeight() {
+    return myCpuWeight;
+  }
+
+  public int getCpuQuotaPercent() {
+    return myCpuQuotaPercent;
+  }
+
+  public int getMemoryMaxMb() {
+    return myMemoryMaxMb;
+  }
+
+  public int getIoWeight() {
+    return myIoWeight;
+  }
+
+  public boolean isEmpty() {
+    return myCpuWeight == 0 && myCpuQuotaPercent == 0 && myMemoryMaxMb == 0 && myIoWeight == 0;
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder();
+    if (myCpuWeight > 0) sb.append("cpu.weight ").append(myCpuWeight).append(", ");
+    if (myCpuQuotaPercent > 0) sb.append("cpu.max ").append(myCpuQuotaPercent).append("%, ");
+    if (myMemoryMaxMb > 0) sb.append("memory.max ").append(myMemoryMaxMb).append("MB, ");
+    if (myIoWeight > 0) sb.append("io.weight ").append(myIoWeight).append(", ");
+    return sb.length() == 0 ? "none" : sb.substring(0, sb.length() - 2);
+  }
+}
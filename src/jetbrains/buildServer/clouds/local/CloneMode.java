@@ -0,0 +1,42 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Describes how read-only parts of the agent home (libraries, plugins, launcher and bundled JRE)
+ * are brought into an instance folder.
+ */
+public enum CloneMode {
+  /** copy-on-write clone of the files, requires filesystem support (btrfs, xfs, apfs) */
+  REFLINK("reflink"),
+  /**
+   * hard links to the image files, requires the instance folder to be on the same filesystem as the image;
+   * the linked files are made read-only, so an agent upgrade replaces them instead of writing into the image.
+   * Not used on Windows, where read-only files cannot be replaced
+   */
+  HARDLINK("hardlink"),
+  /** plain byte-to-byte copy */
+  COPY("copy");
+
+  @NotNull private final String myName;
+
+  CloneMode(@NotNull final String name) {
+    myName = name;
+  }
+
+  @NotNull
+  public String getName() {
+    return myName;
+  }
+
+  @Nullable
+  public static CloneMode fromName(@NotNull final String name) {
+    for (CloneMode mode : values()) {
+      if (mode.myName.equalsIgnoreCase(name)) return mode;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,277 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.SystemInfo;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Assigns disjoint CPU sets to instances of all profiles on the server machine.
+ * <p/>
+ * The lowest CPUs of the first NUMA node are reserved for the server and never assigned.
+ * An instance gets CPUs of one NUMA node when some node has enough free CPUs, the node with the fewest free CPUs
+ * which fit is taken to keep bigger nodes for bigger instances. Otherwise CPUs of several nodes are taken,
+ * and if there are not enough free CPUs at all, the instance runs without affinity.
+ */
+public class CpuPlacement {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(CpuPlacement.class);
+  public static final int DEFAULT_RESERVED_CPUS = 2;
+
+  @NotNull private final SortedMap<Integer, SortedSet<Integer>> myNodeCpus;
+  @NotNull private final Map<String, Integer> myReservedCpusByProfile = new HashMap<String, Integer>();
+  @NotNull private SortedSet<Integer> myReserved = new TreeSet<Integer>();
+  @NotNull private final Map<LocalCloudInstance, CpuSet> myAssignments = new HashMap<LocalCloudInstance, CpuSet>();
+
+  public CpuPlacement() {
+    this(readTopology());
+  }
+
+  CpuPlacement(@NotNull final SortedMap<Integer, SortedSet<Integer>> nodeCpus) {
+    myNodeCpus = nodeCpus;
+  }
+
+  /**
+   * @return false if CPU and NUMA topology is not known on this machine
+   */
+  public boolean isSupported() {
+    return !myNodeCpus.isEmpty();
+  }
+
+  /**
+   * The largest number requested by profiles is reserved
+   */
+  public synchronized void setReservedCpus(@NotNull final String profileId, final int count) {
+    myReservedCpusByProfile.put(profileId, count);
+    int reservedCount = 0;
+    for (Integer value : myReservedCpusByProfile.values()) {
+      reservedCount = Math.max(reservedCount, value);
+    }
+
+    final SortedSet<Integer> reserved = new TreeSet<Integer>();
+    for (SortedSet<Integer> cpus : myNodeCpus.values()) {
+      for (Integer cpu : cpus) {
+        if (reserved.size() >= reservedCount) break;
+        reserved.add(cpu);
+      }
+    }
+    myReserved = reserved;
+  }
+
+  @NotNull
+  public synchronized String getReservedCpuList() {
+    return CpuSet.toList(myReserved);
+  }
+
+  public synchronized int getTotalCpusCount() {
+    int count = 0;
+    for (SortedSet<Integer> cpus : myNodeCpus.values()) {
+      count += cpus.size();
+    }
+    return count;
+  }
+
+  public synchronized int getAssignedCpusCount() {
+    int count = 0;
+    for (CpuSet cpuSet : myAssignments.values()) {
+      count += cpuSet.getCpus().size();
+    }
+    return count;
+  }
+
+  /**
+   * @return CPUs for the instance, the ones it already has if it is assigned, null if there are not enough free CPUs
+   */
+  @Nullable
+  synchronized CpuSet assign(@NotNull final LocalCloudInstance instance, final int count) {
+    final CpuSet assigned = myAssignments.get(instance);
+    if (assigned != null) return assigned;
+    if (count <= 0 || !isSupported()) return null;
+
+    final SortedMap<Integer, SortedSet<Integer>> free = getFreeCpus();
+    Integer bestNode = null;
+    for (Map.Entry<Integer, SortedSet<Integer>> e : free.entrySet()) {
+      final int size = e.getValue().size();
+      if (size >= count && (bestNode == null || size < free.get(bestNode).size())) {
+        bestNode = e.getKey();
+      }
+    }
+
+    final List<Integer> cpus = new ArrayList<Integer>();
+    final Set<Integer> nodes = new TreeSet<Integer>();
+    if (bestNode != null) {
+      take(free.get(bestNode), count, cpus);
+      nodes.add(bestNode);
+    } else {
+      //spread over the nodes with the most free CPUs
+      final List<Map.Entry<Integer, SortedSet<Integer>>> byFree = new ArrayList<Map.Entry<Integer, SortedSet<Integer>>>(free.entrySet());
+      Collections.sort(byFree, new Comparator<Map.Entry<Integer, SortedSet<Integer>>>() {
+        public int compare(final Map.Entry<Integer, SortedSet<Integer>> o1, final Map.Entry<Integer, SortedSet<Integer>> o2) {
+          return o2.getValue().size() - o1.getValue().size();
+        }
+      });
+      for (Map.Entry<Integer, SortedSet<Integer>> e : byFree) {
+        if (cpus.size() >= count) break;
+        if (take(e.getValue(), count - cpus.size(), cpus) > 0) {
+          nodes.add(e.getKey());
+        }
+      }
+      if (cpus.size() < count) {
+        LOG.warn("Not enough free CPUs for " + instance + ": " + count + " requested, " + cpus.size() + " free, it runs without CPU affinity");
+        return null;
+      }
+    }
+
+    final CpuSet cpuSet = new CpuSet(cpus, nodes);
+    myAssignments.put(instance, cpuSet);
+    return cpuSet;
+  }
+
+  /**
+   * Records CPUs of an agent started by the previous server run
+   */
+  synchronized void adopt(@NotNull final LocalCloudInstance instance, @NotNull final SortedSet<Integer> cpus) {
+    final SortedSet<Integer> all = new TreeSet<Integer>();
+    final Set<Integer> nodes = new TreeSet<Integer>();
+    for (Map.Entry<Integer, SortedSet<Integer>> e : myNodeCpus.entrySet()) {
+      all.addAll(e.getValue());
+      for (Integer cpu : cpus) {
+        if (e.getValue().contains(cpu)) nodes.add(e.getKey());
+      }
+    }
+    //an agent allowed to run on all CPUs was not pinned
+    if (cpus.isEmpty() || cpus.containsAll(all)) return;
+    myAssignments.put(instance, new CpuSet(cpus, nodes));
+  }
+
+  synchronized void release(@NotNull final LocalCloudInstance instance) {
+    myAssignments.remove(instance);
+  }
+
+  @Nullable
+  synchronized CpuSet getAssignment(@NotNull final LocalCloudInstance instance) {
+    return myAssignments.get(instance);
+  }
+
+  @NotNull
+  private SortedMap<Integer, SortedSet<Integer>> getFreeCpus() {
+    final Set<Integer> used = new HashSet<Integer>(myReserved);
+    for (CpuSet cpuSet : myAssignments.values()) {
+      used.addAll(cpuSet.getCpus());
+    }
+    final SortedMap<Integer, SortedSet<Integer>> free = new TreeMap<Integer, SortedSet<Integer>>();
+    for (Map.Entry<Integer, SortedSet<Integer>> e : myNodeCpus.entrySet()) {
+      final SortedSet<Integer> cpus = new TreeSet<Integer>(e.getValue());
+      cpus.removeAll(used);
+      free.put(e.getKey(), cpus);
+    }
+    return free;
+  }
+
+  private static int take(@NotNull final SortedSet<Integer> from, final int count, @NotNull final List<Integer> to) {
+    int taken = 0;
+    for (Integer cpu : from) {
+      if (taken >= count) break;
+      to.add(cpu);
+      taken++;
+    }
+    return taken;
+  }
+
+  /**
+   * @return command prefix which runs the rest of the command on the CPUs, with memory preferably allocated
+   * on their NUMA node, empty if neither numactl nor taskset is installed
+   */
+  @NotNull
+  static List<String> getAffinityPrefix(@NotNull final CpuSet cpuSet) {
+    final File numactl = findExecutable("numactl");
+    if (numactl != null && cpuSet.getNodes().size() == 1) {
+      return Arrays.asList(numactl.getAbsolutePath(), "--physcpubind=" + cpuSet.getCpuList(), "--preferred=" + cpuSet.getNodeList());
+    }
+    final File taskset = findExecutable("taskset");
+    if (taskset != null) {
+      return Arrays.asList(taskset.getAbsolutePath(), "-c", cpuSet.getCpuList());
+    }
+    LOG.warn("Neither numactl nor taskset is found, agents run without CPU affinity");
+    return Collections.emptyList();
+  }
+
+  @Nullable
+  private static File findExecutable(@NotNull final String name) {
+    for (String dir : new String[]{"/usr/bin", "/bin", "/usr/local/bin"}) {
+      final File file = new File(dir, name);
+      if (file.isFile()) return file;
+    }
+    return null;
+  }
+
+  /**
+   * @return CPUs the server may run on by NUMA node, a single node 0 if the machine has no NUMA information
+   */
+  @NotNull
+  private static SortedMap<Integer, SortedSet<Integer>> readTopology() {
+    final SortedMap<Integer, SortedSet<Integer>> result = new TreeMap<Integer, SortedSet<Integer>>();
+    if (!SystemInfo.isLinux) return result;
+    try {
+      final SortedSet<Integer> allowed = getAllowedCpus();
+      final File[] nodeDirs = new File("/sys/devices/system/node").listFiles();
+      if (nodeDirs != null) {
+        for (File nodeDir : nodeDirs) {
+          if (!nodeDir.getName().matches("node\\d+")) continue;
+          final SortedSet<Integer> cpus = CpuSet.parseList(FileUtil.readText(new File(nodeDir, "cpulist")));
+          cpus.retainAll(allowed);
+          if (!cpus.isEmpty()) {
+            result.put(Integer.parseInt(nodeDir.getName().substring("node".length())), cpus);
+          }
+        }
+      }
+      if (result.isEmpty()) {
+        result.put(0, allowed);
+      }
+    } catch (IOException e) {
+      LOG.info("CPU topology is not available, instances run without CPU affinity. " + e.getMessage());
+      result.clear();
+    } catch (NumberFormatException e) {
+      LOG.info("CPU topology is not available, instances run without CPU affinity. " + e.getMessage());
+      result.clear();
+    }
+    return result;
+  }
+
+  @NotNull
+  private static SortedSet<Integer> getAllowedCpus() throws IOException {
+    for (String line : FileUtil.readText(new File("/proc/self/status")).split("\n")) {
+      if (line.startsWith("Cpus_allowed_list:")) {
+        return CpuSet.parseList(line.substring("Cpus_allowed_list:".length()));
+      }
+    }
+    return CpuSet.parseList(FileUtil.readText(new File("/sys/devices/system/cpu/online")));
+  }
+
+  /**
+   * @return CPUs the process may run on, null if they cannot be read
+   */
+  @Nullable
+  static SortedSet<Integer> getAllowedCpus(final long pid) {
+    if (!SystemInfo.isLinux || pid <= 0) return null;
+    try {
+      for (String line : FileUtil.readText(new File("/proc/" + pid + "/status")).split("\n")) {
+        if (line.startsWith("Cpus_allowed_list:")) {
+          return CpuSet.parseList(line.substring("Cpus_allowed_list:".length()));
+        }
+      }
+    } catch (IOException e) {
+      return null;
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,91 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * CPUs assigned to an instance and NUMA nodes they belong to
+ */
+public class CpuSet {
+  @NotNull private final SortedSet<Integer> myCpus;
+  @NotNull private final SortedSet<Integer> myNodes;
+
+  public CpuSet(@NotNull final Collection<Integer> cpus, @NotNull final Collection<Integer> nodes) {
+    myCpus = Collections.unmodifiableSortedSet(new TreeSet<Integer>(cpus));
+    myNodes = Collections.unmodifiableSortedSet(new TreeSet<Integer>(nodes));
+  }
+
+  @NotNull
+  public SortedSet<Integer> getCpus() {
+    return myCpus;
+  }
+
+  @NotNull
+  public SortedSet<Integer> getNodes() {
+    return myNodes;
+  }
+
+  /**
+   * @return CPUs in the kernel list format, e.g. <code>0-3,8</code>
+   */
+  @NotNull
+  public String getCpuList() {
+    return toList(myCpus);
+  }
+
+  @NotNull
+  public String getNodeList() {
+    return toList(myNodes);
+  }
+
+  @Override
+  public String toString() {
+    return getCpuList() + " (NUMA node " + getNodeList() + ")";
+  }
+
+  @NotNull
+  static String toList(@NotNull final SortedSet<Integer> values) {
+    final StringBuilder sb = new StringBuilder();
+    Integer rangeStart = null;
+    Integer previous = null;
+    for (Integer value : values) {
+      if (previous != null && value == previous + 1) {
+        previous = value;
+        continue;
+      }
+      appendRange(sb, rangeStart, previous);
+      rangeStart = value;
+      previous = value;
+    }
+    appendRange(sb, rangeStart, previous);
+    return sb.toString();
+  }
+
+  /**
+   * Parses the kernel list format
+   */
+  @NotNull
+  static SortedSet<Integer> parseList(@NotNull final String list) {
+    final SortedSet<Integer> result = new TreeSet<Integer>();
+    for (String range : list.trim().split(",")) {
+      if (range.trim().isEmpty()) continue;
+      final String[] bounds = range.trim().split("-", 2);
+      final int from = Integer.parseInt(bounds[0].trim());
+      final int to = bounds.length == 2 ? Integer.parseInt(bounds[1].trim()) : from;
+      for (int i = from; i <= to; i++) {
+        result.add(i);
+      }
+    }
+    return result;
+  }
+
+  private static void appendRange(@NotNull final StringBuilder sb, final Integer from, final Integer to) {
+    if (from == null) return;
+    if (sb.length() > 0) sb.append(',');
+    sb.append(from);
+    if (!from.equals(to)) sb.append('-').append(to);
+  }
+}
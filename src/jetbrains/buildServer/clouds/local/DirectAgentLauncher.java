@@ -0,0 +1,109 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import com.intellij.openapi.util.SystemInfo;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Starts the agent launcher JVM of an instance folder without <code>agent.sh</code>,
+ * with the same classpath and options the script uses.
+ * On Unix the JVM is started through <code>exec</code> of a minimal shell which records its pid into the pid file first,
+ * so the pid is exact and the usual pid based checks keep working.
+ */
+public class DirectAgentLauncher {
+  private static final String LAUNCHER_CLASS = "jetbrains.buildServer.agent.Launcher";
+  private static final String AGENT_MAIN_CLASS = "jetbrains.buildServer.agent.AgentMain";
+  private static final String DEFAULT_AGENT_MEM_OPTS = "-Xmx384m";
+
+  /**
+   * @param launchPrefix command which runs the launcher, e.g. in a cgroup or with CPU affinity
+   * @return started launcher process, its output is appended to the launcher log
+   */
+  @NotNull
+  public static Process start(@NotNull final File agentDir,
+                              @NotNull final String extraAgentOpts,
+                              @NotNull final List<String> launchPrefix) throws IOException {
+    final File binDir = new File(agentDir, "bin");
+    final File launcherJar = new File(new File(new File(agentDir, "launcher"), "lib"), "launcher.jar");
+    if (!launcherJar.isFile()) throw new IOException("Agent launcher is not found: " + launcherJar);
+
+    final List<String> command = new ArrayList<String>();
+    final File pidFile = AgentProcesses.getPidFile(agentDir);
+    if (!SystemInfo.isWindows) {
+      command.add("/bin/sh");
+      command.add("-c");
+      command.add("echo $$ > \"$0\"; exec \"$@\"");
+      command.add(pidFile.getAbsolutePath());
+    }
+    final File javaHome = getJavaHome(agentDir);
+    command.add(getJavaExecutable(javaHome).getAbsolutePath());
+    addOptions(command, System.getenv("TEAMCITY_LAUNCHER_OPTS"));
+    command.add("-cp");
+    command.add(launcherJar.getAbsolutePath());
+    command.add(LAUNCHER_CLASS);
+    command.add("-ea");
+    final String memOpts = System.getenv("TEAMCITY_AGENT_MEM_OPTS");
+    addOptions(command, memOpts != null ? memOpts : DEFAULT_AGENT_MEM_OPTS);
+    addOptions(command, System.getenv("TEAMCITY_AGENT_OPTS"));
+    addOptions(command, extraAgentOpts);
+    final File log4jConfig = getLog4jConfig(agentDir);
+    if (log4jConfig != null) {
+      command.add((log4jConfig.getName().contains("log4j2") ? "-Dlog4j2.configurationFile=file:" : "-Dlog4j.configuration=file:")
+                  + log4jConfig.getAbsolutePath());
+    }
+    command.add("-Dteamcity_logs=" + new File(agentDir, "logs").getAbsolutePath() + File.separator);
+    command.add(AGENT_MAIN_CLASS);
+    command.add("-file");
+    command.add(new File(new File(agentDir, "conf"), "buildAgent.properties").getAbsolutePath());
+
+    final List<String> fullCommand = new ArrayList<String>(launchPrefix);
+    fullCommand.addAll(command);
+    final File log = AgentProcesses.prepareLauncherLog(agentDir, fullCommand);
+    final ProcessBuilder builder = new ProcessBuilder(fullCommand)
+      .directory(binDir)
+      .redirectErrorStream(true)
+      .redirectOutput(ProcessBuilder.Redirect.appendTo(log));
+    builder.environment().put("JAVA_HOME", javaHome.getAbsolutePath());
+
+    final Process process = builder.start();
+    process.getOutputStream().close();
+    return process;
+  }
+
+  /**
+   * @return JRE bundled with the agent or the server JRE, as the script would use
+   */
+  @NotNull
+  static File getJavaHome(@NotNull final File agentDir) {
+    final File bundledJre = new File(agentDir, "jre");
+    return getJavaExecutable(bundledJre).isFile() ? bundledJre : new File(System.getProperty("java.home"));
+  }
+
+  @NotNull
+  static File getJavaExecutable(@NotNull final File javaHome) {
+    return new File(new File(javaHome, "bin"), SystemInfo.isWindows ? "java.exe" : "java");
+  }
+
+  @Nullable
+  private static File getLog4jConfig(@NotNull final File agentDir) {
+    for (String name : new String[]{"teamcity-agent-log4j2.xml", "teamcity-agent-log4j.xml"}) {
+      final File config = new File(new File(agentDir, "conf"), name);
+      if (config.isFile()) return config;
+    }
+    return null;
+  }
+
+  private static void addOptions(@NotNull final List<String> command, @Nullable final String options) {
+    if (options == null) return;
+    for (String option : options.trim().split("\\s+")) {
+      if (!option.isEmpty()) command.add(option);
+    }
+  }
+}
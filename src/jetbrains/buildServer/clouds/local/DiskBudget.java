@@ -0,0 +1,164 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.util.ExceptionUtil;
+import jetbrains.buildServer.util.NamedDeamonThreadFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps instance folders of a cloud profile within the image disk caps and the profile disk budget.
+ * Folders are measured periodically on a low priority thread of the profile, separate from the {@link DiskReclaimer} one,
+ * so walking big folders of one profile delays neither deletions nor checks of other profiles. When folders take more than allowed
+ * idle reusable instances are evicted, the coldest and biggest first: candidates are ordered by idle time multiplied by size,
+ * so a recently used workspace survives unless it is much bigger than the cold ones.
+ * While the profile budget is still exceeded, new instances are not started.
+ */
+public class DiskBudget {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(DiskBudget.class);
+
+  @NotNull private final DiskReclaimer myReclaimer;
+  @NotNull private final ExecutorService myExecutor;
+  @NotNull private final AtomicReference<Collection<LocalCloudImage>> myPendingImages = new AtomicReference<Collection<LocalCloudImage>>();
+  private volatile long myBudgetBytes;
+  private volatile long myUsedBytes;
+  @Nullable private volatile Date myLastCheckTime;
+  @NotNull private final AtomicLong myEvictedInstances = new AtomicLong();
+
+  public DiskBudget(@NotNull final DiskReclaimer reclaimer) {
+    myReclaimer = reclaimer;
+    final ThreadFactory threadFactory = new NamedDeamonThreadFactory("local-cloud-disk-budget");
+    myExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(@NotNull final Runnable r) {
+        final Thread thread = threadFactory.newThread(r);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * @param budgetMb maximum size of all instance folders of the profile, 0 for no limit
+   */
+  public void setBudgetMb(final long budgetMb) {
+    myBudgetBytes = budgetMb * 1024 * 1024;
+  }
+
+  public long getBudgetBytes() {
+    return myBudgetBytes;
+  }
+
+  /**
+   * @return size of instance folders measured by the last check
+   */
+  public long getUsedBytes() {
+    return myUsedBytes;
+  }
+
+  @Nullable
+  public Date getLastCheckTime() {
+    return myLastCheckTime;
+  }
+
+  public long getEvictedInstances() {
+    return myEvictedInstances.get();
+  }
+
+  public boolean isExceeded() {
+    final long budget = myBudgetBytes;
+    return budget > 0 && myUsedBytes > budget;
+  }
+
+  /**
+   * Schedules measuring and eviction, checks requested while one waits to run are merged into it
+   */
+  public void checkAsync(@NotNull final Collection<LocalCloudImage> images) {
+    if (myPendingImages.getAndSet(images) != null) return;
+    try {
+      myExecutor.execute(ExceptionUtil.catchAll("check local cloud disk budget", new Runnable() {
+        public void run() {
+          final Collection<LocalCloudImage> latest = myPendingImages.getAndSet(null);
+          if (latest != null) {
+            check(latest);
+          }
+        }
+      }));
+    } catch (RejectedExecutionException e) {
+      //the profile is disposed
+    }
+  }
+
+  /**
+   * Stops measuring, called on the profile dispose
+   */
+  public void shutdown() {
+    myExecutor.shutdownNow();
+  }
+
+  private void check(@NotNull final Collection<LocalCloudImage> images) {
+    long used = 0;
+    final List<LocalCloudInstance> idleInstances = new ArrayList<LocalCloudInstance>();
+    for (LocalCloudImage image : images) {
+      long imageUsed = image.measureDiskUsage();
+      final long cap = image.getDiskCapBytes();
+      if (cap > 0 && imageUsed > cap) {
+        imageUsed -= evict(image.getIdleInstances(), imageUsed - cap, "disk cap of image " + image.getName());
+      }
+      used += imageUsed;
+      idleInstances.addAll(image.getIdleInstances());
+    }
+
+    final long budget = myBudgetBytes;
+    if (budget > 0 && used > budget) {
+      used -= evict(idleInstances, used - budget, "profile disk budget");
+      if (used > budget) {
+        LOG.warn("Local cloud instance folders take " + used / 1024 / 1024 + "MB, which exceeds the disk budget of " + budget / 1024 / 1024 +
+                 "MB, new instances are not started until the folders are deleted");
+      }
+    }
+    myUsedBytes = used;
+    myLastCheckTime = new Date();
+  }
+
+  /**
+   * Evicts idle reusable instances with the highest idle time and size product first
+   *
+   * @return number of bytes freed
+   */
+  private long evict(@NotNull final List<LocalCloudInstance> candidates, final long bytesToFree, @NotNull final String limit) {
+    final long now = System.currentTimeMillis();
+    Collections.sort(candidates, new Comparator<LocalCloudInstance>() {
+      public int compare(final LocalCloudInstance o1, final LocalCloudInstance o2) {
+        return Double.compare(getEvictionScore(o2, now), getEvictionScore(o1, now));
+      }
+    });
+
+    long freed = 0;
+    for (LocalCloudInstance instance : candidates) {
+      if (freed >= bytesToFree) break;
+      if (!instance.getImage().evictIdleInstance(instance)) continue;
+
+      LOG.info("Evicting idle " + instance + " (" + instance.getDiskUsage() / 1024 / 1024 + "MB, idle for "
+               + (now - instance.getLastUsedTime()) / 1000 / 60 + " minutes) to keep local cloud instance folders within the " + limit);
+      freed += instance.getDiskUsage();
+      myEvictedInstances.incrementAndGet();
+      myReclaimer.reclaim(instance.getBaseDir());
+    }
+    return freed;
+  }
+
+  private static double getEvictionScore(@NotNull final LocalCloudInstance instance, final long now) {
+    return (double)Math.max(1, now - instance.getLastUsedTime()) * Math.max(1, instance.getDiskUsage());
+  }
+}
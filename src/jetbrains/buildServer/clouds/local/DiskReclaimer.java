@@ -0,0 +1,194 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import com.intellij.execution.configurations.GeneralCommandLine;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.SystemInfo;
+import jetbrains.buildServer.SimpleCommandLineProcessRunner;
+import jetbrains.buildServer.util.ExceptionUtil;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.NamedDeamonThreadFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes folders of terminated instances in background.
+ * A folder is renamed into the trash folder at once, so the terminating thread is not blocked and the name can be reused,
+ * then it is deleted on a single low priority thread, on Linux the deletion also runs with the idle I/O priority.
+ * Folders left in the trash by the previous server run are deleted on start.
+ */
+public class DiskReclaimer {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(DiskReclaimer.class);
+  private static final String TRASH_DIR_NAME = "tc_localCloud_trash";
+
+  @NotNull private final File myTrashDir;
+  @NotNull private final ExecutorService myExecutor;
+  @Nullable private final String myIoniceExe;
+  @NotNull private final AtomicInteger myBacklog = new AtomicInteger();
+  @NotNull private final AtomicLong myReclaimedBytes = new AtomicLong();
+  @NotNull private final AtomicLong myReclaimedDirs = new AtomicLong();
+  @NotNull private final AtomicLong myFailedDirs = new AtomicLong();
+
+  public DiskReclaimer() {
+    this(new File(System.getProperty("java.io.tmpdir"), TRASH_DIR_NAME));
+  }
+
+  public DiskReclaimer(@NotNull final File trashDir) {
+    myTrashDir = trashDir;
+    final ThreadFactory threadFactory = new NamedDeamonThreadFactory("local-cloud-reclaimer");
+    myExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(@NotNull final Runnable r) {
+        final Thread thread = threadFactory.newThread(r);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+      }
+    });
+    myIoniceExe = findIonice();
+
+    final File[] leftovers = myTrashDir.listFiles();
+    if (leftovers != null) {
+      for (File dir : leftovers) {
+        submitDelete(dir);
+      }
+    }
+  }
+
+  /**
+   * Moves the folder out of the way and deletes it in background
+   */
+  public void reclaim(@NotNull final File dir) {
+    if (!LocalCloudInstance.isInstanceDir(dir) || !dir.exists()) return;
+
+    final File trashed = moveToTrash(dir);
+    submitDelete(trashed != null ? trashed : dir);
+  }
+
+  /**
+   * @return number of folders waiting for deletion
+   */
+  public int getBacklog() {
+    return myBacklog.get();
+  }
+
+  public long getReclaimedBytes() {
+    return myReclaimedBytes.get();
+  }
+
+  public long getReclaimedDirs() {
+    return myReclaimedDirs.get();
+  }
+
+  public long getFailedDirs() {
+    return myFailedDirs.get();
+  }
+
+  /**
+   * Stops deleting, folders left in the trash are deleted on the next server start
+   */
+  public void shutdown() {
+    myExecutor.shutdownNow();
+  }
+
+  /**
+   * @return apparent size of all files under the folder, symlinks are not followed,
+   * files shared with the template by hard links or reflinks are counted in full
+   */
+  public static long getSize(@NotNull final File dir) {
+    if (!dir.exists()) return 0;
+
+    final AtomicLong size = new AtomicLong();
+    try {
+      Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+          if (attrs.isRegularFile()) size.addAndGet(attrs.size());
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(final Path file, final IOException exc) {
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    } catch (IOException e) {
+      LOG.debug("Failed to measure " + dir + ". " + e.getMessage());
+    }
+    return size.get();
+  }
+
+  @Nullable
+  private File moveToTrash(@NotNull final File dir) {
+    if (!myTrashDir.isDirectory() && !myTrashDir.mkdirs()) return null;
+
+    File target = new File(myTrashDir, dir.getName());
+    for (int i = 1; target.exists(); i++) {
+      target = new File(myTrashDir, dir.getName() + "." + i);
+    }
+    //rename is instant within one filesystem, otherwise the folder is deleted in place
+    return dir.renameTo(target) ? target : null;
+  }
+
+  private void submitDelete(@NotNull final File dir) {
+    myBacklog.incrementAndGet();
+    try {
+      myExecutor.execute(ExceptionUtil.catchAll("delete " + dir, new Runnable() {
+        public void run() {
+          try {
+            delete(dir);
+          } finally {
+            myBacklog.decrementAndGet();
+          }
+        }
+      }));
+    } catch (RejectedExecutionException e) {
+      myBacklog.decrementAndGet();
+    }
+  }
+
+  private void delete(@NotNull final File dir) {
+    final long size = getSize(dir);
+    if (myIoniceExe != null) {
+      final GeneralCommandLine cmd = new GeneralCommandLine();
+      cmd.setExePath(myIoniceExe);
+      cmd.addParameters("-c3", "rm", "-rf", dir.getAbsolutePath());
+      SimpleCommandLineProcessRunner.runCommand(cmd, null);
+    }
+    if (dir.exists()) {
+      FileUtil.delete(dir);
+    }
+
+    if (dir.exists()) {
+      myFailedDirs.incrementAndGet();
+      LOG.warn("Failed to delete " + dir);
+      return;
+    }
+    myReclaimedDirs.incrementAndGet();
+    myReclaimedBytes.addAndGet(size);
+    LOG.debug("Deleted " + dir + ", " + size + " bytes reclaimed");
+  }
+
+  @Nullable
+  private static String findIonice() {
+    if (!SystemInfo.isLinux) return null;
+    for (String path : new String[]{"/usr/bin/ionice", "/bin/ionice"}) {
+      if (new File(path).isFile()) return path;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,281 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.clouds.InstanceStatus;
+import jetbrains.buildServer.serverSide.SBuildAgent;
+import jetbrains.buildServer.util.ExceptionUtil;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.PropertiesUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Agent home captured from an instance of the image after the server has upgraded it.
+ * <p/>
+ * A fresh agent is upgraded on its first connection: it downloads the server plugins and restarts, which takes minutes.
+ * Once an instance has registered with up-to-date plugins, its agent files are copied into a new template,
+ * so later instances start already upgraded. Folders the agent modifies itself and the agent identity
+ * in <code>conf/buildAgent.properties</code> are not captured, see {@link AgentManifest#isIncluded(String)}.
+ * <p/>
+ * A registration with another agent version or plugins signature captures the template again,
+ * an update of the image agent home drops the captured template. A replaced template is deleted
+ * once instances being cloned from it are done, see {@link TemplateDirLeases}.
+ */
+public class GoldenImage {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(GoldenImage.class);
+  private static final String STATE_FILE_NAME = "golden.properties";
+  private static final String TEMPLATE_DIR_PREFIX = "template-";
+  private static final long SETTLE_DELAY = 30 * 1000;
+  private static final long SOURCE_CHECK_TTL = 10 * 1000;
+
+  @NotNull private final LocalCloudImage myImage;
+  @NotNull private final File myRootDir;
+  @NotNull private final Object myLock = new Object();
+  @Nullable private File myDir;
+  @Nullable private String mySignature;
+  @Nullable private String mySourceVersion;
+  @Nullable private Date myCaptureTime;
+  private boolean myIsCapturing;
+  @Nullable private AgentManifest mySourceManifest;
+  @Nullable private File mySourceManifestDir;
+  private long mySourceManifestTime;
+
+  public GoldenImage(@NotNull final LocalCloudImage image, @NotNull final File rootDir) {
+    myImage = image;
+    myRootDir = rootDir;
+    load();
+  }
+
+  /**
+   * @return captured template or the source one if nothing was captured for the current source yet
+   */
+  @NotNull
+  File getTemplateDir(@NotNull final File sourceDir) throws IOException {
+    synchronized (myLock) {
+      if (mySignature == null) return sourceDir;
+
+      if (!getSourceVersion(sourceDir).equals(mySourceVersion)) {
+        LOG.info("Agent home of image " + myImage.getName() + " has changed, the captured template is dropped");
+        reset();
+        return sourceDir;
+      }
+      return myDir != null ? myDir : sourceDir;
+    }
+  }
+
+  /**
+   * @return captured template folder, null if instances are cloned from the image agent home
+   */
+  @Nullable
+  public File getDir() {
+    return myDir;
+  }
+
+  @Nullable
+  public Date getCaptureTime() {
+    return myCaptureTime;
+  }
+
+  public boolean isCapturing() {
+    synchronized (myLock) {
+      return myIsCapturing;
+    }
+  }
+
+  /**
+   * Checks the agent once it has settled: the server may still tell it to upgrade right after the registration
+   */
+  void agentRegistered(@NotNull final LocalCloudInstance instance, @NotNull final SBuildAgent agent) {
+    if (!myImage.isCaptureEnabled()) return;
+
+    try {
+      myImage.getExecutor().schedule(ExceptionUtil.catchAll("check upgraded agent of " + instance, new Runnable() {
+        public void run() {
+          captureIfUpgraded(instance, agent);
+        }
+      }), SETTLE_DELAY, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      //server is shutting down
+    }
+  }
+
+  private void captureIfUpgraded(@NotNull final LocalCloudInstance instance, @NotNull final SBuildAgent agent) {
+    //an outdated agent is being upgraded, it registers again afterwards
+    if (!agent.isRegistered() || agent.isOutdated() || agent.isPluginsOutdated()) return;
+    if (instance.getStatus() != InstanceStatus.RUNNING || !instance.isAgentRegistered()) return;
+
+    final String signature = agent.getVersion() + "/" + agent.getPluginsSignature();
+    final File sourceDir;
+    final String sourceVersion;
+    synchronized (myLock) {
+      if (myIsCapturing) return;
+      try {
+        sourceDir = myImage.getSourceDir();
+        sourceVersion = getSourceVersion(sourceDir);
+      } catch (IOException e) {
+        LOG.warn("Failed to check agent home of image " + myImage.getName() + ". " + e.getMessage());
+        return;
+      }
+      if (signature.equals(mySignature) && sourceVersion.equals(mySourceVersion)) return;
+      myIsCapturing = true;
+    }
+
+    try {
+      myImage.getProvisioningScheduler().submit(myImage.getId(), "capture template of image " + myImage.getName(), new Runnable() {
+        public void run() {
+          try {
+            capture(instance, signature, sourceDir, sourceVersion);
+          } catch (IOException e) {
+            LOG.warn("Failed to capture agent template of image " + myImage.getName() + " from " + instance + ". " + e.getMessage());
+          } finally {
+            synchronized (myLock) {
+              myIsCapturing = false;
+            }
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      synchronized (myLock) {
+        myIsCapturing = false;
+      }
+    }
+  }
+
+  private void capture(@NotNull final LocalCloudInstance instance,
+                       @NotNull final String signature,
+                       @NotNull final File sourceDir,
+                       @NotNull final String sourceVersion) throws IOException {
+    final File instanceDir = instance.getBaseDir();
+    final AgentManifest manifest = AgentManifest.build(instanceDir, AgentManifest.load(instanceDir));
+    if (manifest.getVersion().equals(myImage.getTemplateVersion())) {
+      //the agent was not changed by the server, the template is up to date
+      synchronized (myLock) {
+        update(myDir, signature, sourceVersion);
+      }
+      return;
+    }
+
+    final long start = System.currentTimeMillis();
+    final File dir = new File(myRootDir, TEMPLATE_DIR_PREFIX + start);
+    try {
+      for (String path : manifest.getPaths()) {
+        final Path target = new File(dir, path).toPath();
+        Files.createDirectories(target.getParent());
+        Files.copy(new File(instanceDir, path).toPath(), target, StandardCopyOption.COPY_ATTRIBUTES);
+      }
+      //new instances get the identity of the source template, not the one of the captured agent
+      final File agentProperties = new File(sourceDir, AgentManifest.AGENT_PROPERTIES_PATH);
+      if (agentProperties.isFile()) {
+        FileUtil.copy(agentProperties, new File(dir, AgentManifest.AGENT_PROPERTIES_PATH));
+      }
+    } catch (IOException e) {
+      FileUtil.delete(dir);
+      throw e;
+    }
+
+    final File obsolete;
+    synchronized (myLock) {
+      obsolete = myDir;
+      update(dir, signature, sourceVersion);
+    }
+    if (obsolete != null) {
+      myImage.getTemplateLeases().retire(obsolete);
+    }
+    LOG.info("Captured agent template of image " + myImage.getName() + " from " + instance + " (" + manifest.size() + " files, agent " + signature + ") in " +
+             (System.currentTimeMillis() - start) + "ms");
+  }
+
+  private void update(@Nullable final File dir, @NotNull final String signature, @NotNull final String sourceVersion) {
+    myDir = dir;
+    mySignature = signature;
+    mySourceVersion = sourceVersion;
+    myCaptureTime = new Date();
+    save();
+  }
+
+  private void reset() {
+    if (myDir != null) {
+      myImage.getTemplateLeases().retire(myDir);
+    }
+    myDir = null;
+    mySignature = null;
+    mySourceVersion = null;
+    myCaptureTime = null;
+    FileUtil.delete(new File(myRootDir, STATE_FILE_NAME));
+  }
+
+  @NotNull
+  private String getSourceVersion(@NotNull final File sourceDir) throws IOException {
+    final boolean sameDir = sourceDir.equals(mySourceManifestDir);
+    if (mySourceManifest == null || !sameDir || System.currentTimeMillis() - mySourceManifestTime >= SOURCE_CHECK_TTL) {
+      mySourceManifest = AgentManifest.build(sourceDir, sameDir ? mySourceManifest : null);
+      mySourceManifestDir = sourceDir;
+      mySourceManifestTime = System.currentTimeMillis();
+    }
+    return mySourceManifest.getVersion();
+  }
+
+  private void save() {
+    final Properties props = new Properties();
+    if (myDir != null) props.setProperty("dir", myDir.getName());
+    if (mySignature != null) props.setProperty("signature", mySignature);
+    if (mySourceVersion != null) props.setProperty("sourceVersion", mySourceVersion);
+    if (myCaptureTime != null) props.setProperty("captured", String.valueOf(myCaptureTime.getTime()));
+
+    final File file = new File(myRootDir, STATE_FILE_NAME);
+    final File tmp = new File(myRootDir, STATE_FILE_NAME + ".tmp");
+    try {
+      if (!myRootDir.isDirectory() && !myRootDir.mkdirs()) throw new IOException("Failed to create " + myRootDir);
+      PropertiesUtil.storeProperties(props, tmp, "Captured agent template of image " + myImage.getName());
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      LOG.warn("Failed to save " + file + ". " + e.getMessage());
+    }
+  }
+
+  private void load() {
+    final File file = new File(myRootDir, STATE_FILE_NAME);
+    if (file.isFile()) {
+      try {
+        final Properties props = PropertiesUtil.loadProperties(file);
+        final String dirName = props.getProperty("dir");
+        final File dir = dirName == null ? null : new File(myRootDir, dirName);
+        final String signature = props.getProperty("signature");
+        final String sourceVersion = props.getProperty("sourceVersion");
+        final long captureTime = Long.parseLong(props.getProperty("captured", "0"));
+        if (signature != null && sourceVersion != null && (dir == null || dir.isDirectory())) {
+          myDir = dir;
+          mySignature = signature;
+          mySourceVersion = sourceVersion;
+          myCaptureTime = new Date(captureTime);
+        }
+      } catch (IOException e) {
+        LOG.warn("Failed to load " + file + ". " + e.getMessage());
+      } catch (NumberFormatException e) {
+        LOG.warn("Failed to load " + file + ". " + e.getMessage());
+      }
+    }
+
+    //leftovers of interrupted or replaced captures
+    final File[] dirs = myRootDir.listFiles();
+    if (dirs == null) return;
+    for (File dir : dirs) {
+      if (dir.isDirectory() && dir.getName().startsWith(TEMPLATE_DIR_PREFIX) && !dir.equals(myDir)) {
+        FileUtil.delete(dir);
+      }
+    }
+  }
+}
@@ -0,0 +1,64 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import com.intellij.openapi.util.SystemInfo;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Reads current resources of the server machine
+ */
+public class HostCapacity {
+  private static final long MB = 1024 * 1024;
+
+  /**
+   * @return memory available for new processes without swapping in megabytes, null if it cannot be determined
+   */
+  @Nullable
+  public static Long getAvailableMemoryMb() {
+    if (!SystemInfo.isLinux) return null;
+    try {
+      for (String line : FileUtil.readText(new File("/proc/meminfo")).split("\n")) {
+        if (line.startsWith("MemAvailable:")) {
+          final String value = line.substring("MemAvailable:".length()).trim();
+          return Long.parseLong(value.substring(0, value.indexOf(' '))) / 1024;
+        }
+      }
+    } catch (IOException e) {
+      return null;
+    } catch (RuntimeException e) {
+      return null;
+    }
+    return null;
+  }
+
+  /**
+   * @return one minute load average, negative if it cannot be determined
+   */
+  public static double getLoadAverage() {
+    if (SystemInfo.isLinux) {
+      try {
+        return Double.parseDouble(FileUtil.readText(new File("/proc/loadavg")).trim().split("\\s+")[0]);
+      } catch (IOException e) {
+        //fall back to the JVM
+      } catch (NumberFormatException e) {
+        //fall back to the JVM
+      }
+    }
+    return ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+  }
+
+  public static int getProcessorsCount() {
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  public static long getFreeDiskMb(@NotNull final File dir) {
+    return dir.getUsableSpace() / MB;
+  }
+}
@@ -13,4 +13,20 @@ public class IdGenerator {
   public String next() {
     return String.valueOf(myNextId.incrementAndGet());
   }
+
+  /**
+   * Makes sure the given id, e.g. restored after a server restart, is never generated again
+   */
+  public void advanceTo(@NotNull final String id) {
+    final int value;
+    try {
+      value = Integer.parseInt(id);
+    } catch (NumberFormatException e) {
+      return;
+    }
+    while (true) {
+      final int current = myNextId.get();
+      if (current >= value || myNextId.compareAndSet(current, value)) return;
+    }
+  }
 }
\ No newline at end of file
@@ -0,0 +1,253 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Parsed settings of one image of a cloud profile, see {@link LocalCloudProfile}.
+ * Two images with equal settings are interchangeable, so running instances survive a profile change
+ * which does not touch their image.
+ */
+public class ImageSettings {
+  public static final int DEFAULT_AUTO_RESTARTS = 3;
+
+  @NotNull private final String myName;
+  @NotNull private final String myAgentHomePath;
+  private boolean myIsReusable;
+  private boolean myIsEternalStarting;
+  @Nullable private Integer myAgentPoolId;
+  @NotNull private final Map<String, String> myExtraProperties = new LinkedHashMap<String, String>();
+  @NotNull private CloneMode myCloneMode = CloneMode.COPY;
+  private int myWarmPoolSize;
+  private int myMaxInstances;
+  private int myMemoryFootprintMb = LocalCloudImage.DEFAULT_MEMORY_FOOTPRINT_MB;
+  private int myDiskCapMb;
+  @NotNull private LaunchMode myLaunchMode = LaunchMode.SCRIPT;
+  private boolean myIsCaptureEnabled;
+  private int myCpuWeight;
+  private int myCpuQuotaPercent;
+  private int myMemoryMaxMb;
+  private int myIoWeight;
+  private int myCpusPerInstance;
+  @NotNull private final Map<String, String> mySharedCaches = new LinkedHashMap<String, String>();
+  @Nullable private AgentSimulation mySimulation;
+  private int myAutoRestarts;
+
+  public ImageSettings(@NotNull final String name, @NotNull final String agentHomePath) {
+    myName = name;
+    myAgentHomePath = agentHomePath;
+  }
+
+  @NotNull
+  public String getName() {
+    return myName;
+  }
+
+  @NotNull
+  public String getAgentHomePath() {
+    return myAgentHomePath;
+  }
+
+  public boolean isReusable() {
+    return myIsReusable;
+  }
+
+  void setReusable(final boolean reusable) {
+    myIsReusable = reusable;
+  }
+
+  public boolean isEternalStarting() {
+    return myIsEternalStarting;
+  }
+
+  void setEternalStarting(final boolean eternalStarting) {
+    myIsEternalStarting = eternalStarting;
+  }
+
+  @Nullable
+  public Integer getAgentPoolId() {
+    return myAgentPoolId;
+  }
+
+  void setAgentPoolId(@Nullable final Integer agentPoolId) {
+    myAgentPoolId = agentPoolId;
+  }
+
+  @NotNull
+  public Map<String, String> getExtraProperties() {
+    return Collections.unmodifiableMap(myExtraProperties);
+  }
+
+  void addExtraProperty(@NotNull final String name, @NotNull final String value) {
+    myExtraProperties.put(name, value);
+  }
+
+  @NotNull
+  public CloneMode getCloneMode() {
+    return myCloneMode;
+  }
+
+  void setCloneMode(@NotNull final CloneMode cloneMode) {
+    myCloneMode = cloneMode;
+  }
+
+  public int getWarmPoolSize() {
+    return myWarmPoolSize;
+  }
+
+  void setWarmPoolSize(final int warmPoolSize) {
+    myWarmPoolSize = warmPoolSize;
+  }
+
+  public int getMaxInstances() {
+    return myMaxInstances;
+  }
+
+  void setMaxInstances(final int maxInstances) {
+    myMaxInstances = maxInstances;
+  }
+
+  public int getMemoryFootprintMb() {
+    return myMemoryFootprintMb;
+  }
+
+  void setMemoryFootprintMb(final int memoryFootprintMb) {
+    myMemoryFootprintMb = memoryFootprintMb;
+  }
+
+  public int getDiskCapMb() {
+    return myDiskCapMb;
+  }
+
+  void setDiskCapMb(final int diskCapMb) {
+    myDiskCapMb = diskCapMb;
+  }
+
+  @NotNull
+  public LaunchMode getLaunchMode() {
+    return myLaunchMode;
+  }
+
+  void setLaunchMode(@NotNull final LaunchMode launchMode) {
+    myLaunchMode = launchMode;
+  }
+
+  public boolean isCaptureEnabled() {
+    return myIsCaptureEnabled;
+  }
+
+  void setCaptureEnabled(final boolean captureEnabled) {
+    myIsCaptureEnabled = captureEnabled;
+  }
+
+  /**
+   * @return paths of shared cache folders by cache names
+   */
+  @NotNull
+  public Map<String, String> getSharedCaches() {
+    return Collections.unmodifiableMap(mySharedCaches);
+  }
+
+  void addSharedCache(@NotNull final String name, @NotNull final String path) {
+    mySharedCaches.put(name, path);
+  }
+
+  /**
+   * @return number of CPUs assigned to every instance, 0 if instances are not pinned to CPUs
+   */
+  public int getCpusPerInstance() {
+    return myCpusPerInstance;
+  }
+
+  void setCpusPerInstance(final int cpusPerInstance) {
+    myCpusPerInstance = cpusPerInstance;
+  }
+
+  /**
+   * @return number of times a reusable instance whose agent died is restarted in a row, 0 if it is stopped
+   */
+  public int getAutoRestarts() {
+    return myAutoRestarts;
+  }
+
+  void setAutoRestarts(final int autoRestarts) {
+    myAutoRestarts = autoRestarts;
+  }
+
+  /**
+   * @return behaviour of simulated instances, null if instances run real agents
+   */
+  @Nullable
+  public AgentSimulation getSimulation() {
+    return mySimulation;
+  }
+
+  void setSimulation(@Nullable final AgentSimulation simulation) {
+    mySimulation = simulation;
+  }
+
+  @NotNull
+  public CgroupLimits getCgroupLimits() {
+    return new CgroupLimits(myCpuWeight, myCpuQuotaPercent, myMemoryMaxMb, myIoWeight);
+  }
+
+  void setCpuWeight(final int cpuWeight) {
+    myCpuWeight = cpuWeight;
+  }
+
+  void setCpuQuotaPercent(final int cpuQuotaPercent) {
+    myCpuQuotaPercent = cpuQuotaPercent;
+  }
+
+  void setMemoryMaxMb(final int memoryMaxMb) {
+    myMemoryMaxMb = memoryMaxMb;
+  }
+
+  void setIoWeight(final int ioWeight) {
+    myIoWeight = ioWeight;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+
+    final ImageSettings that = (ImageSettings)o;
+    return myIsReusable == that.myIsReusable &&
+           myIsEternalStarting == that.myIsEternalStarting &&
+           myIsCaptureEnabled == that.myIsCaptureEnabled &&
+           myWarmPoolSize == that.myWarmPoolSize &&
+           myMaxInstances == that.myMaxInstances &&
+           myMemoryFootprintMb == that.myMemoryFootprintMb &&
+           myDiskCapMb == that.myDiskCapMb &&
+           myCpuWeight == that.myCpuWeight &&
+           myCpuQuotaPercent == that.myCpuQuotaPercent &&
+           myMemoryMaxMb == that.myMemoryMaxMb &&
+           myIoWeight == that.myIoWeight &&
+           myCpusPerInstance == that.myCpusPerInstance &&
+           myAutoRestarts == that.myAutoRestarts &&
+           myName.equals(that.myName) &&
+           myAgentHomePath.equals(that.myAgentHomePath) &&
+           (myAgentPoolId == null ? that.myAgentPoolId == null : myAgentPoolId.equals(that.myAgentPoolId)) &&
+           myExtraProperties.equals(that.myExtraProperties) &&
+           mySharedCaches.equals(that.mySharedCaches) &&
+           (mySimulation == null ? that.mySimulation == null : mySimulation.equals(that.mySimulation)) &&
+           myCloneMode == that.myCloneMode &&
+           myLaunchMode == that.myLaunchMode;
+  }
+
+  @Override
+  public int hashCode() {
+    int result = myName.hashCode();
+    result = 31 * result + myAgentHomePath.hashCode();
+    result = 31 * result + (myAgentPoolId != null ? myAgentPoolId.hashCode() : 0);
+    result = 31 * result + myExtraProperties.hashCode();
+    return result;
+  }
+}
@@ -0,0 +1,79 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import jetbrains.buildServer.serverSide.AgentDescription;
+import jetbrains.buildServer.serverSide.SBuildAgent;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static jetbrains.buildServer.clouds.local.LocalCloudConstants.IMAGE_ID_PARAM_NAME;
+import static jetbrains.buildServer.clouds.local.LocalCloudConstants.INSTANCE_ID_PARAM_NAME;
+
+/**
+ * Constant-time lookup of instances of a cloud client by image and instance ids, network identity and agent id.
+ * Instances are added on creation and removed when forgotten, agent ids are bound on agent registration.
+ */
+public class InstanceIndex {
+  @NotNull private final Map<String, LocalCloudInstance> myByIds = new ConcurrentHashMap<String, LocalCloudInstance>();
+  @NotNull private final Map<String, LocalCloudInstance> myByNetworkIdentity = new ConcurrentHashMap<String, LocalCloudInstance>();
+  @NotNull private final Map<Integer, LocalCloudInstance> myByAgentId = new ConcurrentHashMap<Integer, LocalCloudInstance>();
+
+  void instanceCreated(@NotNull final LocalCloudInstance instance) {
+    myByIds.put(key(instance.getImageId(), instance.getInstanceId()), instance);
+    myByNetworkIdentity.put(instance.getNetworkIdentity(), instance);
+  }
+
+  void instanceForgotten(@NotNull final LocalCloudInstance instance) {
+    myByIds.remove(key(instance.getImageId(), instance.getInstanceId()));
+    myByNetworkIdentity.remove(instance.getNetworkIdentity());
+    myByAgentId.values().remove(instance);
+  }
+
+  void agentRegistered(@NotNull final SBuildAgent agent, @NotNull final LocalCloudInstance instance) {
+    myByAgentId.put(agent.getId(), instance);
+  }
+
+  void agentRemoved(@NotNull final SBuildAgent agent) {
+    myByAgentId.remove(agent.getId());
+  }
+
+  @Nullable
+  public LocalCloudInstance find(@NotNull final String imageId, @NotNull final String instanceId) {
+    return myByIds.get(key(imageId, instanceId));
+  }
+
+  @Nullable
+  public LocalCloudInstance findByNetworkIdentity(@NotNull final String networkIdentity) {
+    return myByNetworkIdentity.get(networkIdentity);
+  }
+
+  /**
+   * @return instance of the already registered agent, avoids reading agent configuration parameters
+   */
+  @Nullable
+  public LocalCloudInstance findByRegisteredAgent(@NotNull final AgentDescription agentDescription) {
+    if (!(agentDescription instanceof SBuildAgent)) return null;
+    return myByAgentId.get(((SBuildAgent)agentDescription).getId());
+  }
+
+  @Nullable
+  public LocalCloudInstance findByAgent(@NotNull final AgentDescription agentDescription) {
+    final LocalCloudInstance instance = findByRegisteredAgent(agentDescription);
+    if (instance != null) return instance;
+
+    final Map<String, String> configParams = agentDescription.getConfigurationParameters();
+    final String imageId = configParams.get(IMAGE_ID_PARAM_NAME);
+    final String instanceId = configParams.get(INSTANCE_ID_PARAM_NAME);
+    if (imageId == null || instanceId == null) return null;
+    return find(imageId, instanceId);
+  }
+
+  @NotNull
+  private static String key(@NotNull final String imageId, @NotNull final String instanceId) {
+    return imageId + "/" + instanceId;
+  }
+}
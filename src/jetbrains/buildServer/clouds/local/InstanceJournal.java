@@ -0,0 +1,334 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.clouds.InstanceStatus;
+import jetbrains.buildServer.util.ExceptionUtil;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.PropertiesUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Persists instances and warm folders of a cloud profile in the plugin data directory.
+ * After a server restart the journal written by the previous server run is read back,
+ * so running agents are attached again, folders of stopped reusable instances are reused and the rest is deleted.
+ * Changes are written in background, at most once per {@link #FLUSH_DELAY_MILLIS}.
+ */
+public class InstanceJournal {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(InstanceJournal.class);
+  private static final long FLUSH_DELAY_MILLIS = 1000;
+
+  @NotNull private final File myFile;
+  @NotNull private final ScheduledExecutorService myExecutor;
+  @NotNull private final Map<String, LocalCloudInstance> myInstances = new ConcurrentHashMap<String, LocalCloudInstance>();
+  @NotNull private final Set<File> myWarmDirs = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+  @NotNull private final AtomicBoolean myIsFlushScheduled = new AtomicBoolean();
+  @NotNull private final List<Entry> myRecoveredEntries = new ArrayList<Entry>();
+  @NotNull private final List<File> myRecoveredWarmDirs = new ArrayList<File>();
+
+  public InstanceJournal(@NotNull final File file, @NotNull final ScheduledExecutorService executor) {
+    myFile = file;
+    myExecutor = executor;
+    load();
+  }
+
+  @NotNull
+  public File getFile() {
+    return myFile;
+  }
+
+  /**
+   * @return instances of the image with the given name recorded by the previous server run, they are returned only once
+   */
+  @NotNull
+  synchronized List<Entry> takeRecovered(@NotNull final String imageName) {
+    final List<Entry> result = new ArrayList<Entry>();
+    for (Iterator<Entry> it = myRecoveredEntries.iterator(); it.hasNext(); ) {
+      final Entry entry = it.next();
+      if (entry.getImageName().equals(imageName)) {
+        result.add(entry);
+        it.remove();
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return recorded instances which were not taken by any image
+   */
+  @NotNull
+  synchronized List<Entry> takeAllRecovered() {
+    final List<Entry> result = new ArrayList<Entry>(myRecoveredEntries);
+    myRecoveredEntries.clear();
+    return result;
+  }
+
+  @NotNull
+  synchronized List<File> takeRecoveredWarmDirs() {
+    final List<File> result = new ArrayList<File>(myRecoveredWarmDirs);
+    myRecoveredWarmDirs.clear();
+    return result;
+  }
+
+  /**
+   * @return ids of images recorded by the previous server run
+   */
+  @NotNull
+  synchronized Collection<String> getRecoveredImageIds() {
+    final Set<String> result = new HashSet<String>();
+    for (Entry entry : myRecoveredEntries) {
+      result.add(entry.getImageId());
+    }
+    return result;
+  }
+
+  void instanceChanged(@NotNull final LocalCloudInstance instance) {
+    myInstances.put(getKey(instance), instance);
+    scheduleFlush();
+  }
+
+  void instanceForgotten(@NotNull final LocalCloudInstance instance) {
+    if (myInstances.remove(getKey(instance)) != null) {
+      scheduleFlush();
+    }
+  }
+
+  void warmDirCreated(@NotNull final File dir) {
+    myWarmDirs.add(dir);
+    scheduleFlush();
+  }
+
+  void warmDirRemoved(@NotNull final File dir) {
+    if (myWarmDirs.remove(dir)) {
+      scheduleFlush();
+    }
+  }
+
+  @NotNull
+  private static String getKey(@NotNull final LocalCloudInstance instance) {
+    return instance.getImageId() + "/" + instance.getInstanceId();
+  }
+
+  private void scheduleFlush() {
+    if (!myIsFlushScheduled.compareAndSet(false, true)) return;
+    try {
+      myExecutor.schedule(ExceptionUtil.catchAll("write local cloud instances journal", new Runnable() {
+        public void run() {
+          flush();
+        }
+      }), FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      //the profile is disposed, it flushes the journal itself
+      myIsFlushScheduled.set(false);
+    }
+  }
+
+  /**
+   * Writes the current state, the file is replaced atomically, so a crash never leaves a partially written journal
+   */
+  synchronized void flush() {
+    myIsFlushScheduled.set(false);
+
+    final Properties props = new Properties();
+    int index = 0;
+    for (LocalCloudInstance instance : myInstances.values()) {
+      final File baseDir = instance.getBaseDir();
+      if (!LocalCloudInstance.isInstanceDir(baseDir)) continue;
+
+      final String prefix = "instance." + index++ + ".";
+      final InstanceStatus status = instance.getStatus();
+      props.setProperty(prefix + "image", instance.getImage().getName());
+      props.setProperty(prefix + "imageId", instance.getImageId());
+      props.setProperty(prefix + "id", instance.getInstanceId());
+      props.setProperty(prefix + "baseDir", baseDir.getAbsolutePath());
+      props.setProperty(prefix + "status", status.name());
+      final Long pid = isActive(status) ? AgentProcesses.readPid(baseDir) : null;
+      if (pid != null) {
+        props.setProperty(prefix + "pid", String.valueOf(pid));
+      }
+    }
+    index = 0;
+    for (File dir : myWarmDirs) {
+      props.setProperty("warm." + index++, dir.getAbsolutePath());
+    }
+
+    try {
+      FileUtil.createParentDirs(myFile);
+      final File tmp = new File(myFile.getParentFile(), myFile.getName() + ".tmp");
+      PropertiesUtil.storeProperties(props, tmp, "Local cloud instances");
+      Files.move(tmp.toPath(), myFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      LOG.warn("Failed to write local cloud instances journal " + myFile + ". " + e.getMessage());
+    }
+  }
+
+  /**
+   * Removes the journal of a removed profile
+   */
+  synchronized void delete() {
+    myInstances.clear();
+    myWarmDirs.clear();
+    FileUtil.delete(myFile);
+  }
+
+  static boolean isActive(@NotNull final InstanceStatus status) {
+    switch (status) {
+      case SCHEDULED_TO_START:
+      case STARTING:
+      case RUNNING:
+      case RESTARTING:
+      case STOPPING:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private void load() {
+    if (!myFile.isFile()) return;
+
+    final Properties props;
+    try {
+      props = PropertiesUtil.loadProperties(myFile);
+    } catch (IOException e) {
+      LOG.warn("Failed to read local cloud instances journal " + myFile + ". " + e.getMessage());
+      return;
+    }
+
+    for (String name : props.stringPropertyNames()) {
+      if (name.startsWith("warm.")) {
+        final File dir = new File(props.getProperty(name));
+        if (LocalCloudInstance.isInstanceDir(dir)) myRecoveredWarmDirs.add(dir);
+        continue;
+      }
+      if (!name.startsWith("instance.") || !name.endsWith(".id")) continue;
+
+      final String prefix = name.substring(0, name.length() - "id".length());
+      final String imageName = props.getProperty(prefix + "image");
+      final String imageId = props.getProperty(prefix + "imageId");
+      final String baseDir = props.getProperty(prefix + "baseDir");
+      if (imageName == null || imageId == null || baseDir == null || !LocalCloudInstance.isInstanceDir(new File(baseDir))) {
+        LOG.warn("Skipped broken entry " + prefix + " of local cloud instances journal " + myFile);
+        continue;
+      }
+      myRecoveredEntries.add(new Entry(imageName, imageId, props.getProperty(name), new File(baseDir),
+                                       parseStatus(props.getProperty(prefix + "status")), parsePid(props.getProperty(prefix + "pid"))));
+    }
+    Collections.sort(myRecoveredEntries, new Comparator<Entry>() {
+      public int compare(final Entry o1, final Entry o2) {
+        return o1.getBaseDir().compareTo(o2.getBaseDir());
+      }
+    });
+    LOG.info("Read " + myRecoveredEntries.size() + " instances and " + myRecoveredWarmDirs.size() + " warm folders from local cloud instances journal " + myFile);
+  }
+
+  @Nullable
+  private static InstanceStatus parseStatus(@Nullable final String status) {
+    if (status == null) return null;
+    try {
+      return InstanceStatus.valueOf(status);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  @Nullable
+  private static Long parsePid(@Nullable final String pid) {
+    if (pid == null) return null;
+    try {
+      return Long.parseLong(pid);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Instance recorded by the previous server run
+   */
+  public static class Entry {
+    @NotNull private final String myImageName;
+    @NotNull private final String myImageId;
+    @NotNull private final String myInstanceId;
+    @NotNull private final File myBaseDir;
+    @Nullable private final InstanceStatus myStatus;
+    @Nullable private final Long myPid;
+
+    public Entry(@NotNull final String imageName,
+                 @NotNull final String imageId,
+                 @NotNull final String instanceId,
+                 @NotNull final File baseDir,
+                 @Nullable final InstanceStatus status,
+                 @Nullable final Long pid) {
+      myImageName = imageName;
+      myImageId = imageId;
+      myInstanceId = instanceId;
+      myBaseDir = baseDir;
+      myStatus = status;
+      myPid = pid;
+    }
+
+    @NotNull
+    public String getImageName() {
+      return myImageName;
+    }
+
+    @NotNull
+    public String getImageId() {
+      return myImageId;
+    }
+
+    @NotNull
+    public String getInstanceId() {
+      return myInstanceId;
+    }
+
+    @NotNull
+    public File getBaseDir() {
+      return myBaseDir;
+    }
+
+    @Nullable
+    public InstanceStatus getStatus() {
+      return myStatus;
+    }
+
+    /**
+     * @return true if the agent process of the instance is still running,
+     * where processes cannot be checked the recorded status is trusted
+     */
+    public boolean isAgentAlive() {
+      if (!AgentProcesses.canCheckAlive()) return myStatus != null && isActive(myStatus);
+      return getAgentPid() != null;
+    }
+
+    /**
+     * @return pid of the running agent of the instance, null if it is not running or the recorded pid now belongs to another process
+     */
+    @Nullable
+    public Long getAgentPid() {
+      if (!AgentProcesses.canCheckAlive()) return null;
+      final Long pid = AgentProcesses.readPid(myBaseDir);
+      final Long agentPid = pid != null ? pid : myPid;
+      return AgentProcesses.isAgentProcess(agentPid, myBaseDir) ? agentPid : null;
+    }
+
+    @Override
+    public String toString() {
+      return "instance " + myInstanceId + " of image " + myImageName + " (" + myBaseDir + ")";
+    }
+  }
+}
@@ -0,0 +1,35 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Describes how the agent of an instance is started and stopped.
+ */
+public enum LaunchMode {
+  /** <code>agent.sh start</code> and <code>agent.sh stop force</code>, works with any agent distribution */
+  SCRIPT("script"),
+  /** the agent launcher JVM is started directly and stopped by a signal, saves a shell and a JVM per start and stop */
+  DIRECT("direct");
+
+  @NotNull private final String myName;
+
+  LaunchMode(@NotNull final String name) {
+    myName = name;
+  }
+
+  @NotNull
+  public String getName() {
+    return myName;
+  }
+
+  @Nullable
+  public static LaunchMode fromName(@NotNull final String name) {
+    for (LaunchMode mode : values()) {
+      if (mode.myName.equalsIgnoreCase(name)) return mode;
+    }
+    return null;
+  }
+}
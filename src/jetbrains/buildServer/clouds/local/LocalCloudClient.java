@@ -6,8 +6,9 @@ import jetbrains.buildServer.clouds.*;
 import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.serverSide.AgentDescription;
 import jetbrains.buildServer.serverSide.BuildServerAdapter;
-import jetbrains.buildServer.util.NamedDeamonThreadFactory;
-import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SBuildAgent;
+import jetbrains.buildServer.util.EventDispatcher;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -15,67 +16,38 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class LocalCloudClient extends BuildServerAdapter implements CloudClientEx {
   @NotNull private final List<LocalCloudImage> myImages = new ArrayList<LocalCloudImage>();
+  @NotNull private final Map<String, LocalCloudImage> myImagesById = new ConcurrentHashMap<String, LocalCloudImage>();
   @Nullable private final CloudErrorInfo myErrorInfo;
-  @NotNull private final ScheduledExecutorService myExecutor = Executors.newSingleThreadScheduledExecutor(new NamedDeamonThreadFactory("local-cloud-image"));
-
-  public LocalCloudClient(@NotNull final CloudClientParameters params) {
-    final String images = params.getParameter(LocalCloudConstants.IMAGES_PROFILE_SETTING);
-    if (images == null || images.trim().length() == 0) {
-      myErrorInfo = new CloudErrorInfo("No images specified");
-      return;
+  @NotNull private final ProfileRuntimes.Lease myRuntimeLease;
+  @NotNull private final ProfileRuntime myRuntime;
+  @NotNull private final AdmissionControl myAdmissionControl;
+  @NotNull private final EventDispatcher<BuildServerListener> myServerDispatcher;
+
+  public LocalCloudClient(@NotNull final LocalCloudProfile profile,
+                          @NotNull final ProfileRuntimes.Lease runtimeLease,
+                          @NotNull final EventDispatcher<BuildServerListener> serverDispatcher) {
+    myServerDispatcher = serverDispatcher;
+    myRuntimeLease = runtimeLease;
+    myRuntime = runtimeLease.getRuntime();
+    myAdmissionControl = new AdmissionControl(profile.getMaxInstances(), profile.getMaxLoadPerCore(), profile.getMinFreeDiskMb(), myRuntime.getDiskBudget());
+
+    for (LocalCloudImage image : myRuntime.applyProfile(profile)) {
+      myImages.add(image);
+      myImagesById.put(image.getId(), image);
     }
 
-    final IdGenerator imageIdGenerator = new IdGenerator();
-
-    final StringBuilder error = new StringBuilder();
-    final String[] allLines = StringUtil.splitByLines(images.trim());
-
-    for (String imageInfo : allLines) {
-      imageInfo = imageInfo.trim();
-      if (imageInfo.isEmpty() || imageInfo.startsWith("@@")) continue;
-
-      final int atPos = imageInfo.indexOf('@');
-      if (atPos < 0) {
-        error.append(" Failed to parse image info: \"").append(imageInfo).append("\".");
-        continue;
-      }
-
-      final String imageName = imageInfo.substring(0, atPos).trim();
-      final String agentHomePath = imageInfo.substring(atPos + 1).trim();
-      final LocalCloudImage image = new LocalCloudImage(imageIdGenerator.next(), imageName, agentHomePath, myExecutor);
-
-      for (String line : allLines) {
-        String prefix = "@@" + imageName + ":";
-        if (!line.startsWith(prefix)) continue;
-        line = line.substring(prefix.length()).trim();
-
-        if (line.contains("reuse")) image.setIsReusable(true);
-        if (line.contains("delay")) image.setIsEternalStarting(true);
-        if (line.contains("agentPoolId:")) {
-          String poolIdStr = line.substring("agentPoolId:".length());
-          try {
-            Integer poolId = Integer.parseInt(poolIdStr);
-            image.setAgentPoolId(poolId);
-          } catch (NumberFormatException e) {
-            Loggers.SERVER.warnAndDebugDetails("Could not parse local cloud image pool id parameter", e);
-          }
-        }
-        if (!line.startsWith("prop:")) continue;
-        String[] kv = line.substring(5).trim().split("=", 2);
-        if (kv.length == 2) {
-          image.addExtraProperty(kv[0].trim(), kv[1].trim());
-        }
-      }
+    final String problems = profile.getProblemsDescription();
+    myErrorInfo = problems == null ? null : new CloudErrorInfo(problems);
+  }
 
-      myImages.add(image);
-    }
-    
-    myErrorInfo = error.length() == 0 ? null : new CloudErrorInfo(error.substring(1));
+  @NotNull
+  public ProvisioningScheduler getProvisioningScheduler() {
+    return myRuntime.getProvisioningScheduler();
   }
 
   public boolean isInitialized() {
@@ -84,23 +56,17 @@ public class LocalCloudClient extends BuildServerAdapter implements CloudClientE
 
   @Nullable
   public LocalCloudImage findImageById(@NotNull final String imageId) throws CloudException {
-    for (final LocalCloudImage image : myImages) {
-      if (image.getId().equals(imageId)) {
-        return image;
-      }
-    }
-    return null;
+    return myImagesById.get(imageId);
   }
 
   @Nullable
   public LocalCloudInstance findInstanceByAgent(@NotNull final AgentDescription agentDescription) {
-    final LocalCloudImage image = findImage(agentDescription);
-    if (image == null) return null;
-
-    final String instanceId = findInstanceId(agentDescription);
-    if (instanceId == null) return null;
+    return myRuntime.getInstanceIndex().findByAgent(agentDescription);
+  }
 
-    return image.findInstanceById(instanceId);
+  @Nullable
+  public LocalCloudInstance findInstanceByNetworkIdentity(@NotNull final String networkIdentity) {
+    return myRuntime.getInstanceIndex().findByNetworkIdentity(networkIdentity);
   }
 
   @NotNull
@@ -114,10 +80,20 @@ public class LocalCloudClient extends BuildServerAdapter implements CloudClientE
   }
 
   public boolean canStartNewInstance(@NotNull final CloudImage image) {
-    return true;
+    final LocalCloudImage localImage = (LocalCloudImage)image;
+    final String reason = myAdmissionControl.getRejectionReason(localImage, myImages);
+    if (reason != null && !reason.equals(localImage.getLastRejectionReason())) {
+      Loggers.SERVER.info("Cannot start new instance of local cloud image " + localImage.getName() + ": " + reason);
+    }
+    localImage.setLastRejection(reason);
+    return reason == null;
   }
 
   public String generateAgentName(@NotNull final AgentDescription agentDescription) {
+    final LocalCloudInstance instance = myRuntime.getInstanceIndex().findByAgent(agentDescription);
+    if (instance != null) return generateAgentName(instance.getImage(), instance.getInstanceId());
+
+    //agent of an instance this client does not know about
     final LocalCloudImage image = findImage(agentDescription);
     if (image == null) return null;
 
@@ -145,12 +121,37 @@ public class LocalCloudClient extends BuildServerAdapter implements CloudClientE
     ((LocalCloudInstance)instance).terminate();
   }
 
-  public void dispose() {
-    for (final LocalCloudImage image : myImages) {
-      image.dispose();
+  @Override
+  public void agentRegistered(@NotNull final SBuildAgent agent, final long currentlyRunningBuildId) {
+    final LocalCloudInstance instance = findInstanceByAgent(agent);
+    if (instance != null) {
+      myRuntime.getInstanceIndex().agentRegistered(agent, instance);
+      instance.agentRegistered();
+      instance.getImage().getGoldenImage().agentRegistered(instance, agent);
     }
+  }
+
+  @Override
+  public void agentUnregistered(@NotNull final SBuildAgent agent) {
+    final LocalCloudInstance instance = findInstanceByAgent(agent);
+    if (instance != null) {
+      instance.agentUnregistered();
+    }
+  }
+
+  @Override
+  public void agentRemoved(@NotNull final SBuildAgent agent) {
+    myRuntime.getInstanceIndex().agentRemoved(agent);
+  }
+
+  /**
+   * Keeps instances running, they are terminated if the profile runtime is not taken by a new client of the profile soon
+   */
+  public void dispose() {
+    myServerDispatcher.removeListener(this);
     myImages.clear();
-    myExecutor.shutdown();
+    myImagesById.clear();
+    myRuntimeLease.release();
   }
 
   @Nullable
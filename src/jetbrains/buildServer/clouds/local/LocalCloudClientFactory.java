@@ -7,25 +7,46 @@ import jetbrains.buildServer.clouds.CloudClientParameters;
 import jetbrains.buildServer.clouds.CloudRegistrar;
 import jetbrains.buildServer.clouds.CloudState;
 import jetbrains.buildServer.serverSide.AgentDescription;
+import jetbrains.buildServer.serverSide.BuildServerListener;
 import jetbrains.buildServer.serverSide.InvalidProperty;
 import jetbrains.buildServer.serverSide.PropertiesProcessor;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.web.openapi.PluginDescriptor;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 public class LocalCloudClientFactory implements CloudClientFactory {
   @NotNull private final String myJspPath;
+  @NotNull private final EventDispatcher<BuildServerListener> myServerDispatcher;
+  @NotNull private final ProfileRuntimes myRuntimes;
   
   public LocalCloudClientFactory(@NotNull final CloudRegistrar cloudRegistrar,
-                                 @NotNull final PluginDescriptor pluginDescriptor) {
+                                 @NotNull final PluginDescriptor pluginDescriptor,
+                                 @NotNull final EventDispatcher<BuildServerListener> serverDispatcher,
+                                 @NotNull final ServerPaths serverPaths) {
     myJspPath = pluginDescriptor.getPluginResourcesPath("profile-settings.jsp");
+    myServerDispatcher = serverDispatcher;
+    myRuntimes = new ProfileRuntimes(new File(serverPaths.getPluginDataDirectory(), "local-cloud"));
+    myServerDispatcher.addListener(myRuntimes);
     cloudRegistrar.registerCloudFactory(this);
   }
 
+  /**
+   * @return runtimes of all local cloud profiles
+   */
+  @NotNull
+  public ProfileRuntimes getRuntimes() {
+    return myRuntimes;
+  }
+
   @NotNull
   public String getCloudCode() {
     return LocalCloudConstants.TYPE;
@@ -51,7 +72,11 @@ public class LocalCloudClientFactory implements CloudClientFactory {
     return new PropertiesProcessor() {
       @NotNull
       public Collection<InvalidProperty> process(@NotNull final Map<String, String> properties) {
-        return Collections.emptyList();
+        final List<InvalidProperty> result = new ArrayList<InvalidProperty>();
+        for (LocalCloudProfile.Problem problem : LocalCloudProfile.parse(properties).getProblems()) {
+          result.add(new InvalidProperty(problem.getPropertyName(), problem.getMessage()));
+        }
+        return result;
       }
     };
   }
@@ -63,6 +88,9 @@ public class LocalCloudClientFactory implements CloudClientFactory {
 
   @NotNull
   public LocalCloudClient createNewClient(@NotNull final CloudState state, @NotNull final CloudClientParameters params) {
-    return new LocalCloudClient(params);
+    final LocalCloudProfile profile = LocalCloudProfile.parse(params.getParameters());
+    final LocalCloudClient client = new LocalCloudClient(profile, myRuntimes.acquire(state.getProfileId()), myServerDispatcher);
+    myServerDispatcher.addListener(client);
+    return client;
   }
 }
\ No newline at end of file
@@ -7,6 +7,14 @@ import org.jetbrains.annotations.NotNull;
 public interface LocalCloudConstants {
   @NotNull String TYPE = "Local";
   @NotNull String IMAGES_PROFILE_SETTING = "images";
+  @NotNull String PROVISIONING_THREADS_PROFILE_SETTING = "provisioningThreads";
+  @NotNull String LAUNCHES_PER_SECOND_PROFILE_SETTING = "launchesPerSecond";
+  @NotNull String MAX_INSTANCES_PROFILE_SETTING = "maxInstances";
+  @NotNull String MAX_LOAD_PER_CORE_PROFILE_SETTING = "maxLoadPerCore";
+  @NotNull String MIN_FREE_DISK_MB_PROFILE_SETTING = "minFreeDiskMb";
+  @NotNull String DISK_BUDGET_MB_PROFILE_SETTING = "diskBudgetMb";
+  @NotNull String CGROUP_ROOT_PROFILE_SETTING = "cgroupRoot";
+  @NotNull String RESERVED_CPUS_PROFILE_SETTING = "reservedCpus";
   @NotNull String IMAGE_ID_PARAM_NAME = "cloud.local.image.id";
   @NotNull String INSTANCE_ID_PARAM_NAME = "cloud.local.instance.id";
 }
\ No newline at end of file
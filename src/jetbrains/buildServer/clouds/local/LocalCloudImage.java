@@ -2,66 +2,474 @@
 
 package jetbrains.buildServer.clouds.local;
 
+import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.clouds.*;
 import jetbrains.buildServer.serverSide.agentPools.AgentPool;
+import jetbrains.buildServer.util.WaitFor;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class LocalCloudImage implements CloudImage {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(LocalCloudImage.class);
+  public static final int DEFAULT_MEMORY_FOOTPRINT_MB = 512;
+  private static final long TEMPLATE_MANIFEST_TTL = 10 * 1000;
+  //covers a start in progress and the agent stop timeout of an instance
+  private static final int DISPOSE_TIMEOUT = 3 * 60 * 1000;
+
   @NotNull private final String myId;
+  @NotNull private final ImageSettings mySettings;
   @NotNull private final String myName;
   @NotNull private final File myAgentHomeDir;
   @NotNull private final Map<String, LocalCloudInstance> myInstances = new ConcurrentHashMap<String, jetbrains.buildServer.clouds.local.LocalCloudInstance>();
   @NotNull private final IdGenerator myInstanceIdGenerator = new IdGenerator();
+  @NotNull private final Deque<LocalCloudInstance> myIdleInstances = new ConcurrentLinkedDeque<LocalCloudInstance>();
   @Nullable private final CloudErrorInfo myErrorInfo;
-  private boolean myIsReusable;
-  private boolean myIsEternalStarting;
-  private Integer myAgentPoolId;
+  private final boolean myIsReusable;
+  private final boolean myIsEternalStarting;
+  @Nullable private final AgentSimulation mySimulation;
+  private final int myAutoRestarts;
+  @Nullable private final Integer myAgentPoolId;
+  @NotNull private final CloneMode myCloneMode;
+  @NotNull private final LaunchMode myLaunchMode;
+  @Nullable private volatile CloneMode myUsedCloneMode;
   private final Map<String, String> myExtraProperties = new HashMap<String, String>();
   @NotNull private final ScheduledExecutorService myExecutor;
+  @NotNull private final ProvisioningScheduler myProvisioningScheduler;
+  @NotNull private final InstanceIndex myInstanceIndex;
+  @NotNull private final InstanceJournal myJournal;
+  @NotNull private final DiskReclaimer myDiskReclaimer;
+  @NotNull private final DiskBudget myDiskBudget;
+  private volatile long myDiskUsage;
+  @Nullable private final ZipAgentTemplate myZipTemplate;
+  @NotNull private final TemplateDirLeases myTemplateLeases = new TemplateDirLeases();
+  @NotNull private final AtomicLong myRegisteredStarts = new AtomicLong();
+  @NotNull private final AtomicLong myTotalRegistrationLatency = new AtomicLong();
+  private volatile long myLastRegistrationLatency;
+  @NotNull private final AtomicLong myCdsStarts = new AtomicLong();
+  @NotNull private final AtomicLong myCdsRegistrationLatency = new AtomicLong();
+  @NotNull private final CdsArchive myCdsArchive;
+  @NotNull private final GoldenImage myGoldenImage;
+  @NotNull private final ProvisioningMetrics myMetrics;
+  private final boolean myIsCaptureEnabled;
+  @NotNull private final AgentCgroups myAgentCgroups;
+  @NotNull private final CgroupLimits myCgroupLimits;
+  @NotNull private final CpuPlacement myCpuPlacement;
+  private final int myCpusPerInstance;
+  @NotNull private final Map<String, SharedCache> mySharedCaches = new LinkedHashMap<String, SharedCache>();
+  private final int myMaxInstances;
+  private final int myMemoryFootprintMb;
+  private final long myDiskCapBytes;
+  @Nullable private volatile String myLastRejectionReason;
+  @Nullable private volatile Date myLastRejectionTime;
+  @NotNull private final WarmAgentPool myWarmPool;
+  @NotNull private final Object myTemplateManifestLock = new Object();
+  @Nullable private AgentManifest myTemplateManifest;
+  @Nullable private File myTemplateManifestDir;
+  private long myTemplateManifestTime;
 
   public LocalCloudImage(@NotNull final String imageId,
-                         @NotNull final String imageName,
-                         @NotNull final String agentHomePath,
-                         @NotNull final ScheduledExecutorService executor) {
+                         @NotNull final ImageSettings settings,
+                         @NotNull final ProfileRuntime runtime) {
     myId = imageId;
-    myName = imageName;
-    myAgentHomeDir = new File(agentHomePath);
-    myExecutor = executor;
-    myErrorInfo = myAgentHomeDir.isDirectory() || (myAgentHomeDir.isFile() && myAgentHomeDir.getName().endsWith(".zip")) ? null
-            : new CloudErrorInfo("\"" + agentHomePath + "\" is not a directory or a zip archive or does not exist.");
+    mySettings = settings;
+    myName = settings.getName();
+    myAgentHomeDir = new File(settings.getAgentHomePath());
+    myExecutor = runtime.getExecutor();
+    myProvisioningScheduler = runtime.getProvisioningScheduler();
+    myInstanceIndex = runtime.getInstanceIndex();
+    myJournal = runtime.getJournal();
+    myDiskReclaimer = runtime.getDiskReclaimer();
+    myDiskBudget = runtime.getDiskBudget();
+    myWarmPool = new WarmAgentPool(this, myProvisioningScheduler);
+    myCdsArchive = new CdsArchive(this, new File(runtime.getCdsArchivesDir(), toFileName(myName)));
+    myGoldenImage = new GoldenImage(this, new File(runtime.getGoldenImagesDir(), toFileName(myName)));
+    myMetrics = runtime.getMetrics(myName);
+    mySimulation = settings.getSimulation();
+    myAutoRestarts = settings.isReusable() ? settings.getAutoRestarts() : 0;
+    //simulated instances do not need agent files
+    myErrorInfo = mySimulation != null || myAgentHomeDir.isDirectory() || (myAgentHomeDir.isFile() && myAgentHomeDir.getName().endsWith(".zip")) ? null
+            : new CloudErrorInfo("\"" + settings.getAgentHomePath() + "\" is not a directory or a zip archive or does not exist.");
+
+    myIsReusable = settings.isReusable();
+    myIsEternalStarting = settings.isEternalStarting();
+    myAgentPoolId = settings.getAgentPoolId();
+    myExtraProperties.putAll(settings.getExtraProperties());
+    for (Map.Entry<String, String> e : settings.getSharedCaches().entrySet()) {
+      final SharedCache cache = runtime.getSharedCaches().get(new File(e.getValue()));
+      mySharedCaches.put(e.getKey(), cache);
+      myExtraProperties.putAll(SharedCache.getAgentParameters(e.getKey(), cache.getDir()));
+    }
+    myCloneMode = settings.getCloneMode();
+    myLaunchMode = settings.getLaunchMode();
+    myIsCaptureEnabled = settings.isCaptureEnabled();
+    myAgentCgroups = runtime.getAgentCgroups();
+    myCgroupLimits = settings.getCgroupLimits();
+    myCpuPlacement = runtime.getCpuPlacement();
+    myCpusPerInstance = settings.getCpusPerInstance();
+    myWarmPool.setSize(settings.getWarmPoolSize());
+    myMaxInstances = settings.getMaxInstances();
+    //simulated instances run no agent processes
+    myMemoryFootprintMb = mySimulation != null ? 0 : settings.getMemoryFootprintMb();
+    myDiskCapBytes = settings.getDiskCapMb() * 1024L * 1024L;
+
+    if (myErrorInfo == null && mySimulation == null && myAgentHomeDir.isFile()) {
+      myZipTemplate = new ZipAgentTemplate(myAgentHomeDir, myName, myTemplateLeases);
+      myZipTemplate.prepareAsync();
+    } else {
+      myZipTemplate = null;
+    }
   }
 
-  public boolean isReusable() {
-    return myIsReusable;
+  /**
+   * @return profile settings the image was created with
+   */
+  @NotNull
+  public ImageSettings getSettings() {
+    return mySettings;
   }
 
-  public void setIsReusable(boolean isReusable) {
-    myIsReusable = isReusable;
+  public boolean isReusable() {
+    return myIsReusable;
   }
 
   public boolean isEternalStarting() {
     return myIsEternalStarting;
   }
 
-  public void setIsEternalStarting(boolean isEternalStarting) {
-    myIsEternalStarting = isEternalStarting;
+  /**
+   * @return behaviour of simulated instances, null if instances run real agents
+   */
+  @Nullable
+  public AgentSimulation getSimulation() {
+    return mySimulation;
+  }
+
+  /**
+   * @return number of automatic restarts in a row of an instance whose agent died, only reusable instances are restarted
+   */
+  public int getAutoRestarts() {
+    return myAutoRestarts;
+  }
+
+  /**
+   * Checks agents of running instances, see {@link LocalCloudInstance#checkLiveness()}
+   */
+  void checkLiveness() {
+    for (LocalCloudInstance instance : myInstances.values()) {
+      instance.checkLiveness();
+    }
+  }
+
+  /**
+   * @return clone mode to use for new instances, once the configured mode turned out
+   * to be unsupported by the filesystem the fallback mode is returned
+   */
+  @NotNull
+  public CloneMode getCloneMode() {
+    final CloneMode usedCloneMode = myUsedCloneMode;
+    return usedCloneMode != null ? usedCloneMode : myCloneMode;
+  }
+
+  @NotNull
+  public LaunchMode getLaunchMode() {
+    return myLaunchMode;
+  }
+
+  /**
+   * @return true if instances are cloned from the agent home captured after the server upgrade, see {@link GoldenImage}
+   */
+  public boolean isCaptureEnabled() {
+    return myIsCaptureEnabled;
+  }
+
+  @NotNull
+  public CpuPlacement getCpuPlacement() {
+    return myCpuPlacement;
+  }
+
+  /**
+   * @return number of CPUs every instance is pinned to, 0 if instances are not pinned
+   */
+  public int getCpusPerInstance() {
+    return myCpusPerInstance;
+  }
+
+  @NotNull
+  public AgentCgroups getAgentCgroups() {
+    return myAgentCgroups;
+  }
+
+  /**
+   * @return limits of every instance of the image, applied if the profile has a cgroup root
+   */
+  @NotNull
+  public CgroupLimits getCgroupLimits() {
+    return myCgroupLimits;
+  }
+
+  @NotNull
+  public GoldenImage getGoldenImage() {
+    return myGoldenImage;
+  }
+
+  /**
+   * @return durations of lifecycle phases and failures of instances of the image
+   */
+  @NotNull
+  public ProvisioningMetrics getMetrics() {
+    return myMetrics;
+  }
+
+  @NotNull
+  ScheduledExecutorService getExecutor() {
+    return myExecutor;
+  }
+
+  @NotNull
+  public CloneMode getConfiguredCloneMode() {
+    return myCloneMode;
+  }
+
+  /**
+   * @return clone mode which was actually used by the last instance or null if nothing was cloned yet
+   */
+  @Nullable
+  public CloneMode getUsedCloneMode() {
+    return myUsedCloneMode;
+  }
+
+  void setUsedCloneMode(@NotNull final CloneMode usedCloneMode) {
+    myUsedCloneMode = usedCloneMode;
+  }
+
+  @NotNull
+  public WarmAgentPool getWarmPool() {
+    return myWarmPool;
+  }
+
+  /**
+   * Starts preparing warm instance folders, must be called once image settings are applied
+   */
+  void fillWarmPool() {
+    if (myErrorInfo != null || myIsEternalStarting || mySimulation != null) return;
+    myWarmPool.refill();
+  }
+
+  @NotNull
+  InstanceIndex getInstanceIndex() {
+    return myInstanceIndex;
+  }
+
+  @NotNull
+  InstanceJournal getJournal() {
+    return myJournal;
+  }
+
+  @NotNull
+  public DiskReclaimer getDiskReclaimer() {
+    return myDiskReclaimer;
+  }
+
+  @NotNull
+  public DiskBudget getDiskBudget() {
+    return myDiskBudget;
+  }
+
+  /**
+   * @return size of instance and warm folders of the image measured by the last {@link DiskBudget} check
+   */
+  public long getDiskUsage() {
+    return myDiskUsage;
+  }
+
+  /**
+   * Measures instance and warm folders, takes a while for big folders
+   */
+  long measureDiskUsage() {
+    long total = 0;
+    for (LocalCloudInstance instance : myInstances.values()) {
+      final File baseDir = instance.getBaseDir();
+      final long size = LocalCloudInstance.isInstanceDir(baseDir) ? DiskReclaimer.getSize(baseDir) : 0;
+      instance.setDiskUsage(size);
+      total += size;
+    }
+    for (File dir : myWarmPool.getReadyDirs()) {
+      total += DiskReclaimer.getSize(dir);
+    }
+    myDiskUsage = total;
+    return total;
+  }
+
+  /**
+   * @return maximum size of the image folders, idle reusable instances are evicted above it, 0 if not limited
+   */
+  public long getDiskCapBytes() {
+    return myDiskCapBytes;
+  }
+
+  @NotNull
+  List<LocalCloudInstance> getIdleInstances() {
+    return new ArrayList<LocalCloudInstance>(myIdleInstances);
+  }
+
+  /**
+   * Takes the idle reusable instance away from the image, so its folder can be deleted
+   *
+   * @return false if the instance has been taken for a start meanwhile
+   */
+  boolean evictIdleInstance(@NotNull final LocalCloudInstance instance) {
+    if (!myIdleInstances.remove(instance)) return false;
+    if (instance.getStatus() != InstanceStatus.STOPPED) return false;
+    forgetInstance(instance);
+    myDiskUsage -= instance.getDiskUsage();
+    return true;
+  }
+
+  @NotNull
+  public ProvisioningScheduler getProvisioningScheduler() {
+    return myProvisioningScheduler;
+  }
+
+  public int getProvisioningQueueDepth() {
+    return myProvisioningScheduler.getQueueDepth(myId);
+  }
+
+  public int getProvisioningInFlight() {
+    return myProvisioningScheduler.getInFlight(myId);
   }
 
-  public void setAgentPoolId(int agentPoolId) {
-    myAgentPoolId = agentPoolId;
+  public int getMaxInstances() {
+    return myMaxInstances;
   }
 
-  public void addExtraProperty(@NotNull final String name, @NotNull final String value) {
-    myExtraProperties.put(name, value);
+  /**
+   * @return expected memory usage of one instance, used to decide whether the server machine can run one more
+   */
+  public int getMemoryFootprintMb() {
+    return myMemoryFootprintMb;
+  }
+
+  /**
+   * @return number of instances which run or are going to run an agent process
+   */
+  public int getActiveInstancesCount() {
+    int count = 0;
+    for (LocalCloudInstance instance : myInstances.values()) {
+      switch (instance.getStatus()) {
+        case SCHEDULED_TO_START:
+        case STARTING:
+        case RUNNING:
+        case RESTARTING:
+        case STOPPING:
+          count++;
+          break;
+        default:
+          break;
+      }
+    }
+    return count;
+  }
+
+  @Nullable
+  public String getLastRejectionReason() {
+    return myLastRejectionReason;
+  }
+
+  @Nullable
+  public Date getLastRejectionTime() {
+    return myLastRejectionTime;
+  }
+
+  void setLastRejection(@Nullable final String reason) {
+    myLastRejectionReason = reason;
+    myLastRejectionTime = reason == null ? null : new Date();
+  }
+
+  /**
+   * @param withCdsArchive true if the agent JVM used the class data sharing archive of the image
+   */
+  void recordRegistrationLatency(final long latency, final boolean withCdsArchive) {
+    myLastRegistrationLatency = latency;
+    myTotalRegistrationLatency.addAndGet(latency);
+    myRegisteredStarts.incrementAndGet();
+    if (withCdsArchive) {
+      myCdsRegistrationLatency.addAndGet(latency);
+      myCdsStarts.incrementAndGet();
+    }
+  }
+
+  public long getCdsStartsCount() {
+    return myCdsStarts.get();
+  }
+
+  /**
+   * @return average registration latency of agents which used the class data sharing archive
+   */
+  public long getAverageCdsRegistrationLatency() {
+    final long count = myCdsStarts.get();
+    return count == 0 ? 0 : myCdsRegistrationLatency.get() / count;
+  }
+
+  /**
+   * @return average registration latency of agents launched without the class data sharing archive
+   */
+  public long getAverageNoCdsRegistrationLatency() {
+    final long count = myRegisteredStarts.get() - myCdsStarts.get();
+    return count <= 0 ? 0 : (myTotalRegistrationLatency.get() - myCdsRegistrationLatency.get()) / count;
+  }
+
+  @NotNull
+  CdsArchive getCdsArchive() {
+    return myCdsArchive;
+  }
+
+  /**
+   * @return version of the template content, see {@link AgentManifest#getVersion()}
+   */
+  @NotNull
+  String getTemplateVersion() throws IOException {
+    final File templateDir = acquireTemplateDir();
+    try {
+      return getTemplateManifest(templateDir).getVersion();
+    } finally {
+      myTemplateLeases.release(templateDir);
+    }
+  }
+
+  public long getRegisteredStartsCount() {
+    return myRegisteredStarts.get();
+  }
+
+  public long getLastRegistrationLatency() {
+    return myLastRegistrationLatency;
+  }
+
+  public long getAverageRegistrationLatency() {
+    final long count = myRegisteredStarts.get();
+    return count == 0 ? 0 : myTotalRegistrationLatency.get() / count;
+  }
+
+  @Nullable
+  File pollWarmDir() {
+    if (myErrorInfo != null || myIsEternalStarting || mySimulation != null) return null;
+    return myWarmPool.poll();
   }
 
   @NotNull
@@ -69,6 +477,14 @@ public class LocalCloudImage implements CloudImage {
     return myExtraProperties;
   }
 
+  /**
+   * @return shared caches of the image by their names
+   */
+  @NotNull
+  public Map<String, SharedCache> getSharedCaches() {
+    return Collections.unmodifiableMap(mySharedCaches);
+  }
+
   @NotNull
   public String getId() {
     return myId;
@@ -84,6 +500,99 @@ public class LocalCloudImage implements CloudImage {
     return myAgentHomeDir;
   }
 
+  /**
+   * @return folder to clone new instances from, it is either the captured upgraded agent or the source one
+   */
+  @NotNull
+  File getTemplateDir() throws IOException {
+    final File sourceDir = getSourceDir();
+    return myIsCaptureEnabled ? myGoldenImage.getTemplateDir(sourceDir) : sourceDir;
+  }
+
+  /**
+   * @return configured agent home, for zip images it is the extracted archive
+   */
+  @NotNull
+  File getSourceDir() throws IOException {
+    return myZipTemplate != null ? myZipTemplate.getTemplateDir() : myAgentHomeDir;
+  }
+
+  /**
+   * @return template folder which is not deleted until it is released to {@link #getTemplateLeases()}
+   */
+  @NotNull
+  private File acquireTemplateDir() throws IOException {
+    while (true) {
+      final File templateDir = getTemplateDir();
+      if (myTemplateLeases.acquire(templateDir)) return templateDir;
+    }
+  }
+
+  @NotNull
+  TemplateDirLeases getTemplateLeases() {
+    return myTemplateLeases;
+  }
+
+  /**
+   * Clones the template into a new instance folder and records what the folder received
+   */
+  void cloneTemplate(@NotNull final File destDir) throws IOException {
+    final File templateDir = acquireTemplateDir();
+    try {
+      final AgentManifest manifest = getTemplateManifest(templateDir);
+      setUsedCloneMode(AgentHomeCloner.cloneAgentHome(templateDir, destDir, getCloneMode()));
+      manifest.save(destDir);
+    } finally {
+      myTemplateLeases.release(templateDir);
+    }
+  }
+
+  /**
+   * Updates files of a reused instance folder which were changed in the template since the folder received them
+   */
+  void syncWithTemplate(@NotNull final File instanceDir) throws IOException {
+    final File templateDir = acquireTemplateDir();
+    final int changed;
+    try {
+      final AgentManifest manifest = getTemplateManifest(templateDir);
+      final AgentManifest received = AgentManifest.load(instanceDir);
+      if (received == null) {
+        //a folder created before manifests were written: what differs from the template may be upgraded by the agent itself,
+        //so nothing is synced now, the folder is considered to have received the current template and gets its later changes
+        LOG.info("Instance folder " + instanceDir + " has no manifest, it is not synced with the template of image " + myName + " this time");
+        manifest.save(instanceDir);
+        return;
+      }
+
+      changed = AgentHomeCloner.syncAgentHome(templateDir, manifest, instanceDir, received, getCloneMode());
+      manifest.save(instanceDir);
+    } finally {
+      myTemplateLeases.release(templateDir);
+    }
+    if (changed > 0) {
+      AgentHomeCloner.updateScriptPermissions(instanceDir);
+      LOG.info("Updated " + changed + " files of " + instanceDir + " from the template of image " + myName);
+    }
+  }
+
+  /**
+   * @return manifest of the template, it is rebuilt once in a while to notice template updates, only changed files are hashed again
+   */
+  @NotNull
+  private AgentManifest getTemplateManifest(@NotNull final File templateDir) throws IOException {
+    synchronized (myTemplateManifestLock) {
+      final boolean sameDir = templateDir.equals(myTemplateManifestDir);
+      if (myTemplateManifest != null && sameDir && System.currentTimeMillis() - myTemplateManifestTime < TEMPLATE_MANIFEST_TTL) {
+        return myTemplateManifest;
+      }
+      final AgentManifest manifest = AgentManifest.build(templateDir, sameDir ? myTemplateManifest : null);
+      myTemplateManifest = manifest;
+      myTemplateManifestDir = templateDir;
+      myTemplateManifestTime = System.currentTimeMillis();
+      return manifest;
+    }
+  }
+
   @NotNull
   public Collection<? extends CloudInstance> getInstances() {
     return Collections.unmodifiableCollection(myInstances.values());
@@ -106,26 +615,70 @@ public class LocalCloudImage implements CloudImage {
   }
 
   @NotNull
-  public synchronized LocalCloudInstance startNewInstance(@NotNull final CloudInstanceUserData data) {
+  public LocalCloudInstance startNewInstance(@NotNull final CloudInstanceUserData data) {
     for (Map.Entry<String, String> e : myExtraProperties.entrySet()) {
       data.addAgentConfigurationParameter(e.getKey(), e.getValue());
     }
 
-    //check reusable instances
-    for (LocalCloudInstance instance : myInstances.values()) {
-      if (instance.getErrorInfo() == null && instance.getStatus() == InstanceStatus.STOPPED && instance.isRestartable()) {
-        instance.start(data);
-        return instance;
+    //check reusable instances, the most recently stopped one has the warmest folder
+    LocalCloudInstance idle;
+    while ((idle = myIdleInstances.pollFirst()) != null) {
+      //an instance which is not stopped is queued again once it stops
+      if (idle.tryReserve()) {
+        idle.start(data);
+        return idle;
       }
     }
 
     final String instanceId = myInstanceIdGenerator.next();
     final LocalCloudInstance instance = createInstance(instanceId);
     myInstances.put(instanceId, instance);
+    myInstanceIndex.instanceCreated(instance);
+    myJournal.instanceChanged(instance);
     instance.start(data);
     return instance;
   }
 
+  /**
+   * Takes instances recorded by the previous server run: running agents are attached as running instances,
+   * stopped reusable instances become idle, so their folders are reused
+   *
+   * @return entries which were not taken and should be deleted
+   */
+  @NotNull
+  List<InstanceJournal.Entry> reattach(@NotNull final List<InstanceJournal.Entry> entries) {
+    final List<InstanceJournal.Entry> orphans = new ArrayList<InstanceJournal.Entry>();
+    for (InstanceJournal.Entry entry : entries) {
+      if (!entry.getBaseDir().isDirectory() || myInstances.containsKey(entry.getInstanceId())) {
+        orphans.add(entry);
+        continue;
+      }
+
+      final boolean alive = entry.isAgentAlive();
+      if (!alive && !myIsReusable) {
+        orphans.add(entry);
+        continue;
+      }
+
+      final LocalCloudInstance instance = createInstance(entry.getInstanceId(), entry.getBaseDir(), alive ? InstanceStatus.RUNNING : InstanceStatus.STOPPED);
+      myInstanceIdGenerator.advanceTo(entry.getInstanceId());
+      myInstances.put(instance.getInstanceId(), instance);
+      myInstanceIndex.instanceCreated(instance);
+      myJournal.instanceChanged(instance);
+      if (alive) {
+        try {
+          instance.acquireSharedCaches();
+        } catch (IOException e) {
+          LOG.warn("Failed to prepare shared caches for " + instance + ". " + e.getMessage());
+        }
+      } else {
+        myIdleInstances.addLast(instance);
+      }
+      LOG.info("Re-attached " + (alive ? "running" : "stopped") + " " + entry);
+    }
+    return orphans;
+  }
+
   protected LocalCloudInstance createInstance(String instanceId) {
     if (isReusable()) {
       return new ReStartableInstance(instanceId, this, myExecutor);
@@ -133,14 +686,71 @@ public class LocalCloudImage implements CloudImage {
     return new OneUseLocalCloudInstance(instanceId, this, myExecutor);
   }
 
+  @NotNull
+  private LocalCloudInstance createInstance(@NotNull final String instanceId, @NotNull final File baseDir, @NotNull final InstanceStatus status) {
+    if (isReusable()) {
+      return new ReStartableInstance(instanceId, this, myExecutor, baseDir, status);
+    }
+    return new OneUseLocalCloudInstance(instanceId, this, myExecutor, baseDir, status);
+  }
+
+  /**
+   * Stopped reusable instance can be started again
+   */
+  void addIdleInstance(@NotNull final LocalCloudInstance instance) {
+    myIdleInstances.addFirst(instance);
+  }
+
   void forgetInstance(@NotNull final LocalCloudInstance instance) {
     myInstances.remove(instance.getInstanceId());
+    myIdleInstances.remove(instance);
+    myInstanceIndex.instanceForgotten(instance);
+    myJournal.instanceForgotten(instance);
   }
 
-  void dispose() {
-    for (final LocalCloudInstance instance : myInstances.values()) {
-      instance.terminate();
+  @NotNull
+  private static String toFileName(@NotNull final String imageName) {
+    return imageName.replaceAll("[^\\w.-]", "_");
+  }
+
+  /**
+   * Releases the image, on server shutdown agents keep running and stay in the journal, so the next server run re-attaches them
+   *
+   * @param serverShutdown false to terminate all instances and delete their folders
+   */
+  void dispose(final boolean serverShutdown) {
+    final List<LocalCloudInstance> instances = new ArrayList<LocalCloudInstance>(myInstances.values());
+    for (LocalCloudInstance instance : instances) {
+      myInstanceIndex.instanceForgotten(instance);
+      if (!serverShutdown) {
+        instance.terminate();
+      }
+    }
+    if (!serverShutdown) {
+      //agents stop in parallel on the runtime executor, the calling thread only waits for all of them
+      new WaitFor(DISPOSE_TIMEOUT) {
+        @Override
+        protected boolean condition() {
+          for (LocalCloudInstance instance : instances) {
+            if (InstanceJournal.isActive(instance.getStatus())) return false;
+          }
+          return true;
+        }
+      };
+      for (LocalCloudInstance instance : instances) {
+        myJournal.instanceForgotten(instance);
+        if (instance.getStatus() == InstanceStatus.STOPPED) {
+          myDiskReclaimer.reclaim(instance.getBaseDir());
+        } else {
+          LOG.warn("Agent of " + instance + " is not stopped in " + DISPOSE_TIMEOUT + "ms, its folder is kept: " + instance.getBaseDir());
+        }
+      }
     }
     myInstances.clear();
+    myIdleInstances.clear();
+    myWarmPool.dispose();
+    if (myZipTemplate != null) {
+      myZipTemplate.dispose();
+    }
   }
 }
\ No newline at end of file
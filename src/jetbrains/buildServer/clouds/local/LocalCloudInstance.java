@@ -1,11 +1,7 @@
 package jetbrains.buildServer.clouds.local;
 
-import com.intellij.execution.configurations.GeneralCommandLine;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.SystemInfo;
-import com.intellij.util.io.ZipUtil;
-import jetbrains.buildServer.ExecResult;
-import jetbrains.buildServer.SimpleCommandLineProcessRunner;
 import jetbrains.buildServer.clouds.CloudErrorInfo;
 import jetbrains.buildServer.clouds.CloudInstance;
 import jetbrains.buildServer.clouds.CloudInstanceUserData;
@@ -19,12 +15,12 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
-import java.io.FileFilter;
-import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static jetbrains.buildServer.clouds.local.LocalCloudConstants.IMAGE_ID_PARAM_NAME;
 import static jetbrains.buildServer.clouds.local.LocalCloudConstants.INSTANCE_ID_PARAM_NAME;
@@ -37,6 +33,36 @@ public abstract class LocalCloudInstance implements CloudInstance {
   @NotNull
   private static final Logger LOG = Logger.getInstance(LocalCloudInstance.class);
   private static final int STATUS_WAITING_TIMEOUT = 30 * 1000;
+  private static final int STOP_TIMEOUT = 60 * 1000;
+  private static final int PROCESS_EXIT_POLL_INTERVAL = 200;
+  private static final int UNKNOWN_PROCESS_EXIT_DELAY = 3000;
+  private static final int READINESS_POLL_INTERVAL = 2000;
+  private static final int DEAD_CHECKS_BEFORE_ERROR = 3;
+  private static final int REGISTRATION_STALL_TIMEOUT = 5 * 60 * 1000;
+  private static final int REGISTRATION_TIMEOUT = 30 * 60 * 1000;
+  private static final int LOG_TAIL_LINES = 20;
+  private static final int LAUNCHER_OUTPUT_TAIL_LINES = 5;
+  private static final int EXEC_TIMEOUT = 2 * 60 * 1000;
+  private static final int HEARTBEAT_TIMEOUT = 10 * 60 * 1000;
+  private static final int STABLE_RUN_TIME = 10 * 60 * 1000;
+  private static final int RESTART_BACKOFF = 10 * 1000;
+  private static final int MAX_RESTART_BACKOFF = 10 * 60 * 1000;
+  static final String BASE_DIR_PREFIX = "tc_buildAgent_";
+
+  /**
+   * Allowed status transitions, {@link InstanceStatus#ERROR} may be set from any status but stopped ones, see {@link #moveToError(boolean)}
+   */
+  @NotNull
+  private static final Map<InstanceStatus, Set<InstanceStatus>> TRANSITIONS = new EnumMap<InstanceStatus, Set<InstanceStatus>>(InstanceStatus.class) {{
+    put(InstanceStatus.SCHEDULED_TO_START, EnumSet.of(InstanceStatus.STARTING, InstanceStatus.STOPPING));
+    put(InstanceStatus.STARTING, EnumSet.of(InstanceStatus.RUNNING, InstanceStatus.RESTARTING, InstanceStatus.STOPPING, InstanceStatus.ERROR_CANNOT_STOP));
+    put(InstanceStatus.RUNNING, EnumSet.of(InstanceStatus.RESTARTING, InstanceStatus.STOPPING));
+    put(InstanceStatus.RESTARTING, EnumSet.of(InstanceStatus.STARTING, InstanceStatus.STOPPING, InstanceStatus.ERROR_CANNOT_STOP));
+    put(InstanceStatus.STOPPING, EnumSet.of(InstanceStatus.STOPPED, InstanceStatus.ERROR_CANNOT_STOP));
+    put(InstanceStatus.STOPPED, EnumSet.of(InstanceStatus.SCHEDULED_TO_START));
+    put(InstanceStatus.ERROR, EnumSet.of(InstanceStatus.RESTARTING, InstanceStatus.STOPPING));
+    put(InstanceStatus.ERROR_CANNOT_STOP, EnumSet.of(InstanceStatus.STOPPING));
+  }};
 
   @NotNull
   private final String myId;
@@ -54,21 +80,82 @@ public abstract class LocalCloudInstance implements CloudInstance {
   private final AtomicBoolean myIsConfigPatched = new AtomicBoolean(false);
 
   @NotNull
-  private volatile InstanceStatus myStatus;
+  private final AtomicReference<InstanceStatus> myStatus = new AtomicReference<InstanceStatus>(InstanceStatus.SCHEDULED_TO_START);
   @Nullable
   private volatile CloudErrorInfo myErrorInfo;
+  private volatile boolean myIsStartInProgress;
+  private volatile long myLaunchTime;
+  @Nullable
+  private volatile Long myRegistrationLatency;
+  private volatile boolean myIsAgentRegistered;
+  private volatile long myDiskUsage;
+  private volatile long myLastUsedTime = System.currentTimeMillis();
+  @Nullable
+  private volatile Process myAgentProcess;
+  private volatile boolean myIsLaunchedWithCdsArchive;
+  @Nullable private volatile AgentCgroup myCgroup;
+  @Nullable private volatile AgentCgroup.Stats myLastCgroupStats;
+  @Nullable private volatile String myCgroupProblem;
+  private volatile long myStopStartNanos;
+  private volatile long myRegistrationTime;
+  private volatile int myDeadChecks;
+  private volatile int myAutoRestarts;
+  private volatile boolean myIsStartAbandoned;
 
   @NotNull
   private final ScheduledExecutorService myAsync;
 
   public LocalCloudInstance(@NotNull final LocalCloudImage image, @NotNull final String instanceId, @NotNull ScheduledExecutorService executor) {
     myImage = image;
-    myBaseDir = createBaseDir(); // can set status to ERROR, so must be after "myStatus = ..." line
-    myBaseDir.deleteOnExit();
-    myStatus = InstanceStatus.SCHEDULED_TO_START;
     myId = instanceId;
     myStartDate = new Date();
     myAsync = executor;
+    final File warmDir = image.pollWarmDir();
+    if (image.getSimulation() != null) {
+      //not an instance folder, so it is never created, journaled or reclaimed
+      myBaseDir = new File("simulated-" + instanceId);
+    } else if (warmDir != null) {
+      myBaseDir = warmDir;
+      myIsAgentExtracted.set(true);
+      myIsAgentPermissionsUpdated.set(true);
+      image.getMetrics().warmDirTaken();
+    } else {
+      final long start = System.nanoTime();
+      myBaseDir = createBaseDir(); // can set status to ERROR
+      if (myStatus.get() != InstanceStatus.ERROR) {
+        image.getMetrics().phaseFinished(ProvisioningMetrics.Phase.BASE_DIR, start);
+      }
+    }
+  }
+
+  /**
+   * Instance recorded in the journal by the previous server run, its folder is already prepared and configured
+   */
+  protected LocalCloudInstance(@NotNull final LocalCloudImage image,
+                               @NotNull final String instanceId,
+                               @NotNull final ScheduledExecutorService executor,
+                               @NotNull final File baseDir,
+                               @NotNull final InstanceStatus status) {
+    myImage = image;
+    myId = instanceId;
+    myStartDate = new Date();
+    myAsync = executor;
+    myBaseDir = baseDir;
+    myIsAgentExtracted.set(true);
+    myIsAgentPermissionsUpdated.set(true);
+    myIsConfigPatched.set(true);
+    myStatus.set(status);
+    if (status == InstanceStatus.RUNNING) {
+      myCgroup = image.getAgentCgroups().find(baseDir.getName());
+      final SortedSet<Integer> cpus = image.getCpusPerInstance() > 0 ? CpuPlacement.getAllowedCpus(AgentProcesses.readPid(baseDir)) : null;
+      if (cpus != null) {
+        image.getCpuPlacement().adopt(this, cpus);
+      }
+    }
+    final File agentLog = AgentProcesses.getAgentLogFile(baseDir);
+    if (agentLog.isFile()) {
+      myLastUsedTime = agentLog.lastModified();
+    }
   }
 
   public abstract boolean isRestartable();
@@ -78,11 +165,19 @@ public abstract class LocalCloudInstance implements CloudInstance {
     return myBaseDir;
   }
 
+  /**
+   * @return true if the folder looks like an instance folder created by the plugin, only such folders are ever deleted
+   */
+  static boolean isInstanceDir(@NotNull final File dir) {
+    return dir.isAbsolute() && dir.getName().startsWith(BASE_DIR_PREFIX);
+  }
+
   @NotNull
   private File createBaseDir() {
     try {
-      return FileUtil.createTempDirectory("tc_buildAgent_", "");
+      return FileUtil.createTempDirectory(BASE_DIR_PREFIX, "");
     } catch (final IOException e) {
+      myImage.getMetrics().failed(ProvisioningMetrics.Phase.BASE_DIR, e);
       processError(e);
       return new File("");
     }
@@ -119,7 +214,22 @@ public abstract class LocalCloudInstance implements CloudInstance {
 
   @NotNull
   public InstanceStatus getStatus() {
-    return myStatus;
+    return myStatus.get();
+  }
+
+  /**
+   * Atomically moves the instance to the given status if the transition is allowed from the current one
+   */
+  protected boolean moveTo(@NotNull final InstanceStatus status) {
+    while (true) {
+      final InstanceStatus current = myStatus.get();
+      final Set<InstanceStatus> allowed = TRANSITIONS.get(current);
+      if (allowed == null || !allowed.contains(status)) return false;
+      if (myStatus.compareAndSet(current, status)) {
+        myImage.getJournal().instanceChanged(this);
+        return true;
+      }
+    }
   }
 
   @Nullable
@@ -127,90 +237,691 @@ public abstract class LocalCloudInstance implements CloudInstance {
     return myErrorInfo;
   }
 
+  /**
+   * @return time from the agent launch to its registration on the server for the last start, null if it is not registered yet
+   */
+  @Nullable
+  public Long getRegistrationLatency() {
+    return myRegistrationLatency;
+  }
+
+  public boolean isAgentRegistered() {
+    return myIsAgentRegistered;
+  }
+
+  /**
+   * @return last lines written by the agent scripts run for the instance
+   */
+  @NotNull
+  public String getLauncherOutputTail() {
+    return AgentProcesses.readTail(AgentProcesses.getLauncherLogFile(myBaseDir), LAUNCHER_OUTPUT_TAIL_LINES);
+  }
+
+  /**
+   * @return size of the instance folder measured by the last {@link DiskBudget} check
+   */
+  public long getDiskUsage() {
+    return myDiskUsage;
+  }
+
+  void setDiskUsage(final long diskUsage) {
+    myDiskUsage = diskUsage;
+  }
+
+  /**
+   * @return time the instance was started or stopped last time
+   */
+  public long getLastUsedTime() {
+    return myLastUsedTime;
+  }
+
+  /**
+   * The agent has connected to the server, only now the instance is ready to run builds
+   */
+  void agentRegistered() {
+    myIsAgentRegistered = true;
+    //an agent reconnecting while a restart stops it must not end the restart, only a launched agent makes the instance running
+    if (getStatus() != InstanceStatus.STARTING || myIsStartAbandoned) return;
+    if (moveTo(InstanceStatus.RUNNING)) {
+      //the instance may have been restarted after an error
+      myErrorInfo = null;
+      myRegistrationTime = System.currentTimeMillis();
+      final long latency = System.currentTimeMillis() - myLaunchTime;
+      myRegistrationLatency = latency;
+      myImage.recordRegistrationLatency(latency, myIsLaunchedWithCdsArchive && isCdsArchiveMapped());
+      myImage.getMetrics().record(ProvisioningMetrics.Phase.REGISTRATION, latency);
+      LOG.info("Agent of " + this + " registered " + latency + "ms after launch");
+      checkCgroupMembership();
+    }
+  }
+
+  private boolean isCdsArchiveMapped() {
+    if (CdsArchive.isArchiveMapped(myBaseDir)) return true;
+    LOG.info("Agent JVM of " + this + " was launched with the class data sharing archive but did not map it, see " +
+             CdsArchive.getMappingLog(myBaseDir));
+    return false;
+  }
+
+  void agentUnregistered() {
+    myIsAgentRegistered = false;
+  }
+
   public boolean containsAgent(@NotNull final AgentDescription agentDescription) {
+    final LocalCloudInstance registeredInstance = myImage.getInstanceIndex().findByRegisteredAgent(agentDescription);
+    if (registeredInstance != null) return registeredInstance == this;
+
     final Map<String, String> configParams = agentDescription.getConfigurationParameters();
     return myId.equals(configParams.get(INSTANCE_ID_PARAM_NAME)) &&
             getImageId().equals(configParams.get(IMAGE_ID_PARAM_NAME));
   }
 
+  /**
+   * Atomically takes a stopped reusable instance for the next start, only one of concurrent callers succeeds
+   */
+  boolean tryReserve() {
+    return isRestartable() && moveTo(InstanceStatus.SCHEDULED_TO_START);
+  }
+
   public void start(@NotNull final CloudInstanceUserData data) {
-    myStatus = InstanceStatus.STARTING;
+    if (!moveTo(InstanceStatus.STARTING)) {
+      LOG.warn("Cannot start " + this + " in status " + getStatus());
+      return;
+    }
+    myLastUsedTime = System.currentTimeMillis();
+    myImage.getMetrics().startRequested();
 
-    myAsync.submit(ExceptionUtil.catchAll("start local cloud: " + this, new StartAgentCommand(data)));
+    myImage.getProvisioningScheduler().submit(getImageId(), "start local cloud: " + this, new StartAgentCommand(data));
   }
 
+  /**
+   * Restarts the agent asynchronously, an instance which is being started is restarted once the start is finished
+   */
   public void restart() {
-    waitForStatus(InstanceStatus.RUNNING);
-    myStatus = InstanceStatus.RESTARTING;
+    myAsync.submit(ExceptionUtil.catchAll("restart local cloud: " + this, new RestartCommand(System.currentTimeMillis() + STATUS_WAITING_TIMEOUT)));
+  }
+
+  /**
+   * Stops the agent and cleans the instance up asynchronously. An instance which is being prepared is stopped
+   * once the start command has finished, so its folder is not reclaimed while the agent is copied into it.
+   */
+  public void terminate() {
+    if (!moveTo(InstanceStatus.STOPPING)) return;
+
+    myAsync.submit(ExceptionUtil.catchAll("terminate local cloud: " + this, new TerminateCommand()));
+  }
+
+  protected abstract void cleanupStoppedInstance();
+
+  /**
+   * @return pid of the stopped agent, -1 if it is unknown or null if the stop failed
+   */
+  @Nullable
+  private Long stopAgent() {
+    final Long pid = AgentProcesses.readPid(myBaseDir);
+    myStopStartNanos = System.nanoTime();
     try {
       doStop();
-      Thread.sleep(3000);
-      doStart();
     } catch (final Exception e) {
-      processError(e);
+      myImage.getMetrics().failed(ProvisioningMetrics.Phase.STOP, e);
+      processError(e, true);
+      return null;
     }
+    return pid == null ? -1L : pid;
   }
 
-  public void terminate() {
-    myStatus = InstanceStatus.STOPPING;
-    try {
-      doStop();
-      myStatus = InstanceStatus.STOPPED;
+  private void onStopped() {
+    final ProvisioningMetrics metrics = myImage.getMetrics();
+    recordRunTime();
+    long phaseStart = metrics.phaseFinished(ProvisioningMetrics.Phase.STOP, myStopStartNanos);
+    myImage.getCdsArchive().agentExited(this);
+    releaseSharedCaches();
+    releaseCgroup();
+    myImage.getCpuPlacement().release(this);
+    if (moveTo(InstanceStatus.STOPPED)) {
+      myLastUsedTime = System.currentTimeMillis();
+      //the agent has stopped cleanly, an error of the previous run does not prevent the next start
+      myErrorInfo = null;
       cleanupStoppedInstance();
-    } catch (final Exception e) {
-      processError(e);
+      metrics.phaseFinished(ProvisioningMetrics.Phase.CLEANUP, phaseStart);
     }
   }
 
-  protected abstract void cleanupStoppedInstance();
+  private void onStopTimeout() {
+    final String message = "Agent process of " + this + " is still running " + STOP_TIMEOUT / 1000 + " seconds after stop";
+    LOG.warn(message);
+    myImage.getMetrics().failed(ProvisioningMetrics.Phase.STOP, "timeout");
+    myErrorInfo = new CloudErrorInfo(message);
+    if (!moveTo(InstanceStatus.ERROR_CANNOT_STOP)) {
+      LOG.warn("Cannot move " + this + " to " + InstanceStatus.ERROR_CANNOT_STOP + " from " + getStatus());
+    }
+  }
+
+  /**
+   * Polls the agent process on the instance executor and runs the action once it has exited,
+   * instead of waiting for it in the calling thread
+   */
+  private void whenAgentExited(final long pid, final long deadline, @NotNull final Runnable action) {
+    if (pid <= 0 && myAgentProcess == null && myImage.getSimulation() == null) {
+      //nothing to watch, give the agent script some time to stop the agent before its home is reused
+      myAsync.schedule(ExceptionUtil.catchAll("wait for agent exit: " + this, action), UNKNOWN_PROCESS_EXIT_DELAY, TimeUnit.MILLISECONDS);
+      return;
+    }
+    if (!isAgentAlive(pid)) {
+      action.run();
+      return;
+    }
+    if (System.currentTimeMillis() > deadline) {
+      onStopTimeout();
+      return;
+    }
+    myAsync.schedule(ExceptionUtil.catchAll("wait for agent exit: " + this, new Runnable() {
+      public void run() {
+        whenAgentExited(pid, deadline, action);
+      }
+    }), PROCESS_EXIT_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Launches the agent, the instance stays in {@link InstanceStatus#STARTING} until its agent registers on the server
+   */
+  private void launchAgent() throws Exception {
+    final AgentSimulation simulation = myImage.getSimulation();
+    if (simulation != null) {
+      simulateLaunch(simulation);
+      return;
+    }
+
+    final File pidFile = AgentProcesses.getPidFile(myBaseDir);
+    if (pidFile.isFile() && !AgentProcesses.isAlive(AgentProcesses.readPid(myBaseDir))) {
+      FileUtil.delete(pidFile);
+    }
+
+    //the previous agent JVM of a restarted instance may have written the archive
+    myImage.getCdsArchive().agentExited(this);
+    final String cdsOptions = myImage.getCdsArchive().getAgentOptions(this, myBaseDir);
+    myIsLaunchedWithCdsArchive = cdsOptions.contains("SharedArchiveFile");
+    final CpuSet cpuSet = myImage.getCpuPlacement().assign(this, myImage.getCpusPerInstance());
+    myCgroupProblem = null;
+    try {
+      myCgroup = myImage.getAgentCgroups().create(myBaseDir.getName(), myImage.getCgroupLimits(), cpuSet);
+    } catch (IOException e) {
+      cgroupFailed("Failed to prepare cgroup: " + e.getMessage());
+      myCgroup = null;
+    }
+    if (cpuSet != null) {
+      LOG.info("Agent of " + this + " runs on CPUs " + cpuSet);
+    }
+
+    myRegistrationLatency = null;
+    myIsStartAbandoned = false;
+    final long launchStart = System.nanoTime();
+    final long launchTime = System.currentTimeMillis();
+    myLaunchTime = launchTime;
+    doStart(cdsOptions, getLaunchPrefix(cpuSet));
+    myImage.getMetrics().phaseFinished(ProvisioningMetrics.Phase.LAUNCH, launchStart);
+    watchReadiness(launchTime, 0, -1, launchTime);
+  }
+
+  /**
+   * Registers the simulated agent or fails the instance once the sampled start latency has passed
+   */
+  private void simulateLaunch(@NotNull final AgentSimulation simulation) {
+    myRegistrationLatency = null;
+    final long launchTime = System.currentTimeMillis();
+    myLaunchTime = launchTime;
+    final long latency = simulation.nextLatencyMs();
+    final boolean failure = simulation.nextFailure();
+    myImage.getMetrics().record(ProvisioningMetrics.Phase.LAUNCH, 0);
+    myAsync.schedule(ExceptionUtil.catchAll("simulate agent start: " + this, new Runnable() {
+      public void run() {
+        if (myLaunchTime != launchTime || getStatus() != InstanceStatus.STARTING) return;
+        if (failure) {
+          myImage.getMetrics().failed(ProvisioningMetrics.Phase.REGISTRATION, "simulated failure");
+          processError("Simulated agent start failure", "The simulated agent failed " + latency + "ms after launch");
+          return;
+        }
+        agentRegistered();
+      }
+    }), latency, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Watches the agent pid file and log until the agent registers. Fails the instance if the agent process has exited,
+   * if the agent log has not grown for a long time or if the agent has not registered at all in time.
+   * A growing log means the agent is making progress, e.g. it is downloading plugins from the server.
+   *
+   * @param logLength    length of the agent log on the previous check, -1 if there was no log
+   * @param lastProgress time the agent was launched or its log grew last time
+   */
+  private void watchReadiness(final long launchTime, final int deadChecks, final long logLength, final long lastProgress) {
+    myAsync.schedule(ExceptionUtil.catchAll("watch agent start: " + this, new Runnable() {
+      public void run() {
+        if (myLaunchTime != launchTime || getStatus() != InstanceStatus.STARTING) return;
+
+        final File log = AgentProcesses.getAgentLogFile(myBaseDir);
+        final long now = System.currentTimeMillis();
+        final long newLogLength = log.isFile() ? log.length() : -1;
+        long newLastProgress = lastProgress;
+        if (newLogLength != logLength) {
+          if (logLength < 0) {
+            LOG.debug("Agent of " + LocalCloudInstance.this + " started writing its log " + (now - launchTime) + "ms after launch");
+          }
+          newLastProgress = now;
+        }
+        if (now - newLastProgress > REGISTRATION_STALL_TIMEOUT || now - launchTime > REGISTRATION_TIMEOUT) {
+          final String message = now - launchTime > REGISTRATION_TIMEOUT
+                                 ? "Agent did not register on the server in " + REGISTRATION_TIMEOUT / 60000 + " minutes after launch"
+                                 : "Agent did not register on the server and did not write to its log for " + REGISTRATION_STALL_TIMEOUT / 60000 + " minutes";
+          myImage.getMetrics().failed(ProvisioningMetrics.Phase.REGISTRATION, "timeout");
+          abandonStart(message, AgentProcesses.readTail(log, LOG_TAIL_LINES));
+          return;
+        }
+
+        int newDeadChecks = 0;
+        final Process process = myAgentProcess;
+        if (process != null) {
+          if (!process.isAlive()) {
+            newDeadChecks = deadChecks + 1;
+          }
+        } else if (AgentProcesses.canCheckAlive()) {
+          final Long pid = AgentProcesses.readPid(myBaseDir);
+          if (pid != null && !AgentProcesses.isAlive(pid)) {
+            newDeadChecks = deadChecks + 1;
+          }
+        }
+        if (newDeadChecks >= DEAD_CHECKS_BEFORE_ERROR) {
+          myImage.getMetrics().failed(ProvisioningMetrics.Phase.REGISTRATION, "agent exited");
+          processError("Agent process exited before registration on the server", AgentProcesses.readTail(log, LOG_TAIL_LINES));
+          return;
+        }
+        watchReadiness(launchTime, newDeadChecks, newLogLength, newLastProgress);
+      }
+    }), READINESS_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops the agent which did not register in time and fails the instance once the agent has exited,
+   * so a stuck agent neither keeps running unnoticed nor shares its CPUs with the next instance
+   */
+  private void abandonStart(@NotNull final String message, @NotNull final String details) {
+    myIsStartAbandoned = true;
+    LOG.info(message + " for " + this + ", stopping the agent");
+    final Long pid = stopAgent();
+    if (pid == null) return;
+    whenAgentExited(pid, System.currentTimeMillis() + STOP_TIMEOUT, new Runnable() {
+      public void run() {
+        processError(message, details);
+      }
+    });
+  }
+
+  /**
+   * Checks that the agent of a running instance is alive, called periodically on the image executor.
+   * An agent is dead if its process has exited or if it is disconnected from the server and has not written
+   * to its log for a long time. Checks fail several times in a row before the agent is considered dead, so
+   * an agent restarting after an upgrade is not mistaken for a dead one.
+   */
+  void checkLiveness() {
+    if (getStatus() != InstanceStatus.RUNNING || myImage.getSimulation() != null) {
+      myDeadChecks = 0;
+      return;
+    }
+    final String problem = findLivenessProblem();
+    if (problem == null) {
+      myDeadChecks = 0;
+      final long registrationTime = myRegistrationTime;
+      if (myAutoRestarts > 0 && myIsAgentRegistered && registrationTime > 0 && System.currentTimeMillis() - registrationTime > STABLE_RUN_TIME) {
+        myAutoRestarts = 0;
+      }
+      return;
+    }
+    if (++myDeadChecks < DEAD_CHECKS_BEFORE_ERROR) return;
+    myDeadChecks = 0;
+    agentDied(problem);
+  }
+
+  /**
+   * @return why the agent is considered dead, null if it looks alive
+   */
+  @Nullable
+  private String findLivenessProblem() {
+    final Process process = myAgentProcess;
+    if (process != null) {
+      if (!process.isAlive()) return "process exited";
+    } else if (AgentProcesses.canCheckAlive()) {
+      final Long pid = AgentProcesses.readPid(myBaseDir);
+      if (pid != null && !AgentProcesses.isAlive(pid)) return "process exited";
+    }
+    if (!myIsAgentRegistered) {
+      final File log = AgentProcesses.getAgentLogFile(myBaseDir);
+      if (log.isFile() && System.currentTimeMillis() - Math.max(log.lastModified(), myLaunchTime) > HEARTBEAT_TIMEOUT) {
+        return "is disconnected and its log is stale";
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Restarts a reusable instance with a growing delay if automatic restarts are enabled, otherwise stops the instance,
+   * so the server can start a new one
+   */
+  private void agentDied(@NotNull final String problem) {
+    recordRunTime();
+    myImage.getMetrics().failed(ProvisioningMetrics.Phase.RUN, problem);
+    final String message = "Agent " + problem;
+    final String details = AgentProcesses.readTail(AgentProcesses.getAgentLogFile(myBaseDir), LOG_TAIL_LINES);
+
+    final int maxRestarts = myImage.getAutoRestarts();
+    if (maxRestarts == 0) {
+      LOG.warn(message + " for " + this + ", the instance is stopped\n" + details);
+      terminate();
+      return;
+    }
+    if (myAutoRestarts >= maxRestarts) {
+      processError(message + ", not restarted after " + maxRestarts + " automatic restarts", details);
+      return;
+    }
 
-  private void waitForStatus(@NotNull final InstanceStatus status) {
-    new WaitFor(STATUS_WAITING_TIMEOUT) {
-      @Override
-      protected boolean condition() {
-        return myStatus == status;
+    final long delay = Math.min((long)RESTART_BACKOFF << myAutoRestarts, MAX_RESTART_BACKOFF);
+    myAutoRestarts++;
+    processError(message + ", automatic restart " + myAutoRestarts + " of " + maxRestarts + " in " + delay / 1000 + " seconds", details);
+    myAsync.schedule(ExceptionUtil.catchAll("auto-restart local cloud: " + this, new Runnable() {
+      public void run() {
+        //the server could stop the instance meanwhile
+        if (getStatus() == InstanceStatus.ERROR) {
+          restart();
+        }
       }
-    };
+    }), delay, TimeUnit.MILLISECONDS);
+  }
+
+  private void recordRunTime() {
+    final long registrationTime = myRegistrationTime;
+    if (registrationTime <= 0) return;
+    myRegistrationTime = 0;
+    myImage.getMetrics().record(ProvisioningMetrics.Phase.RUN, System.currentTimeMillis() - registrationTime);
+  }
+
+  /**
+   * Leases shared caches of the image for the time the agent runs
+   */
+  void acquireSharedCaches() throws IOException {
+    for (SharedCache cache : myImage.getSharedCaches().values()) {
+      cache.acquire(this);
+    }
+  }
+
+  private void releaseSharedCaches() {
+    for (SharedCache cache : myImage.getSharedCaches().values()) {
+      cache.release(this);
+    }
+  }
+
+  /**
+   * @return CPUs the agent runs on, null if it is not pinned
+   */
+  @Nullable
+  public CpuSet getCpuSet() {
+    return myImage.getCpuPlacement().getAssignment(this);
+  }
+
+  /**
+   * @return command prefix which places the agent into its cgroup and onto its CPUs
+   */
+  @NotNull
+  private List<String> getLaunchPrefix(@Nullable final CpuSet cpuSet) {
+    final List<String> prefix = new ArrayList<String>();
+    final AgentCgroup cgroup = myCgroup;
+    if (cgroup != null) {
+      prefix.addAll(cgroup.getLaunchPrefix());
+    }
+    if (cpuSet != null && (cgroup == null || !cgroup.hasCpuSet())) {
+      prefix.addAll(CpuPlacement.getAffinityPrefix(cpuSet));
+    }
+    return prefix;
+  }
+
+  /**
+   * @return usage of the instance cgroup, for a stopped instance the usage of its last run, null if the instance has no cgroup
+   */
+  @Nullable
+  public AgentCgroup.Stats getCgroupStats() {
+    final AgentCgroup cgroup = myCgroup;
+    if (cgroup != null) {
+      final AgentCgroup.Stats stats = cgroup.readStats();
+      if (stats != null) return stats;
+    }
+    return myLastCgroupStats;
+  }
+
+  /**
+   * @return why the agent runs without the limits of its cgroup, null if it runs in the group or has none
+   */
+  @Nullable
+  public String getCgroupProblem() {
+    return myCgroupProblem;
+  }
+
+  /**
+   * The launch prefix starts the agent even if it cannot join the group, so the membership of the registered agent is verified
+   */
+  private void checkCgroupMembership() {
+    final AgentCgroup cgroup = myCgroup;
+    final Long pid = AgentProcesses.readPid(myBaseDir);
+    if (cgroup == null || pid == null) return;
+    try {
+      if (!cgroup.contains(pid)) {
+        cgroupFailed("Agent process " + pid + " is not in cgroup " + cgroup.getDir() + ", see the agent script output");
+      }
+    } catch (IOException e) {
+      cgroupFailed("Failed to read members of cgroup " + cgroup.getDir() + ": " + e.getMessage());
+    }
+  }
+
+  private void cgroupFailed(@NotNull final String problem) {
+    LOG.warn(problem + ", agent of " + this + " runs without cgroup limits");
+    myCgroupProblem = problem;
+  }
+
+  /**
+   * Keeps the usage of the finished run and deletes the group, it stays if build processes of the agent are still running
+   */
+  private void releaseCgroup() {
+    final AgentCgroup cgroup = myCgroup;
+    if (cgroup == null) return;
+    myCgroup = null;
+    final AgentCgroup.Stats stats = cgroup.readStats();
+    if (stats != null) {
+      myLastCgroupStats = stats;
+      if (stats.getOomKills() > 0) {
+        LOG.warn("Processes of " + this + " were killed " + stats.getOomKills() + " times by the out of memory killer of " + cgroup.getDir());
+      }
+    }
+    if (!cgroup.remove()) {
+      LOG.debug("Cgroup " + cgroup.getDir() + " of " + this + " is not empty yet, it is reused by the next start");
+    }
+  }
+
+  private void processError(@NotNull final String message, @NotNull final String details) {
+    if (!moveToError(false)) {
+      LOG.info(message + " for " + this + " which is already " + getStatus() + "\n" + details);
+      return;
+    }
+    releaseSharedCaches();
+    releasePlacementIfExited();
+    LOG.warn(message + " for " + this + "\n" + details);
+    myErrorInfo = new CloudErrorInfo(message, details);
   }
 
   private void processError(@NotNull final Exception e) {
+    processError(e, false);
+  }
+
+  /**
+   * @param stopFailed true if the error is a failure to stop the agent, only such errors replace {@link InstanceStatus#STOPPING}
+   */
+  private void processError(@NotNull final Exception e, final boolean stopFailed) {
     final String message = e.getMessage();
+    if (!moveToError(stopFailed)) {
+      LOG.info("Failure of " + this + " which is already " + getStatus() + ": " + message, e);
+      return;
+    }
+    releaseSharedCaches();
+    releasePlacementIfExited();
     LOG.error(message, e);
     myErrorInfo = new CloudErrorInfo(message, message, e);
-    myStatus = InstanceStatus.ERROR;
   }
 
-  private void doStart() throws Exception {
-    exec("start");
+  /**
+   * Releases CPUs and the cgroup of a failed instance once its agent has exited, a live agent keeps them,
+   * so the next instance does not get the CPUs the agent still runs on
+   */
+  private void releasePlacementIfExited() {
+    final Process process = myAgentProcess;
+    final boolean alive = process != null ? process.isAlive() : AgentProcesses.isAlive(AgentProcesses.readPid(myBaseDir));
+    if (alive) return;
+    releaseCgroup();
+    myImage.getCpuPlacement().release(this);
+  }
+
+  /**
+   * Atomically moves the instance to {@link InstanceStatus#ERROR}, a terminated instance stays terminated:
+   * e.g. a start command which fails because the instance folder was reclaimed does not resurrect the instance
+   */
+  private boolean moveToError(final boolean stopFailed) {
+    while (true) {
+      final InstanceStatus current = myStatus.get();
+      if (current == InstanceStatus.STOPPED || current == InstanceStatus.ERROR_CANNOT_STOP) return false;
+      if (current == InstanceStatus.STOPPING && !stopFailed) return false;
+      if (myStatus.compareAndSet(current, InstanceStatus.ERROR)) {
+        myImage.getJournal().instanceChanged(this);
+        return true;
+      }
+    }
+  }
+
+  /**
+   * @return true while the agent is running, the launcher process started by the plugin is checked directly
+   */
+  private boolean isAgentAlive(final long pid) {
+    final Process process = myAgentProcess;
+    return process != null ? process.isAlive() : AgentProcesses.isAlive(pid);
+  }
+
+  /**
+   * @param agentOptions additional agent JVM options
+   * @param launchPrefix command to run the agent with
+   */
+  private void doStart(@NotNull final String agentOptions, @NotNull final List<String> launchPrefix) throws Exception {
+    if (myImage.getLaunchMode() == LaunchMode.DIRECT) {
+      myAgentProcess = DirectAgentLauncher.start(myBaseDir, agentOptions, launchPrefix);
+      LOG.info("Started agent launcher of " + this + " directly");
+      return;
+    }
+
+    final Map<String, String> env = new HashMap<String, String>();
+    if (!agentOptions.isEmpty()) {
+      final String agentOpts = System.getenv("TEAMCITY_AGENT_OPTS");
+      env.put("TEAMCITY_AGENT_OPTS", agentOpts == null ? agentOptions : agentOpts + " " + agentOptions);
+    }
+    exec(env, launchPrefix, "start");
   }
 
   private void doStop() throws Exception {
-    exec("stop", "force");
+    if (myImage.getSimulation() != null) {
+      myIsAgentRegistered = false;
+      return;
+    }
+    final Process process = myAgentProcess;
+    if (process != null) {
+      //the launcher stops the agent on the termination signal
+      process.destroy();
+      return;
+    }
+    if (myImage.getLaunchMode() == LaunchMode.DIRECT) {
+      //the launcher was started by the previous server run
+      final Long pid = AgentProcesses.readPid(myBaseDir);
+      if (pid != null && AgentProcesses.kill(pid)) return;
+    }
+    exec(Collections.<String, String>emptyMap(), Collections.<String>emptyList(), "stop", "force");
   }
 
-  private void exec(@NotNull final String... params) throws Exception {
-    final GeneralCommandLine cmd = new GeneralCommandLine();
+  /**
+   * Runs the agent script, its output goes directly to the launcher log of the instance rather than through the server memory
+   */
+  private void exec(@NotNull final Map<String, String> env,
+                    @NotNull final List<String> launchPrefix,
+                    @NotNull final String... params) throws Exception {
     final File workDir = new File(myBaseDir, "bin");
-    cmd.setWorkDirectory(workDir.getAbsolutePath());
-    final Map<String, String> env = new HashMap<String, String>(System.getenv());
-    //fix Java
-    env.put("JAVA_HOME", System.getProperty("java.home"));
-
+    //the script starts the launcher in background, it inherits the cgroup and the CPU affinity
+    final List<String> command = new ArrayList<String>(launchPrefix);
     if (SystemInfo.isWindows) {
-      cmd.setExePath("cmd.exe");
-      cmd.addParameter("/c");
-      cmd.addParameter(new File(workDir, "agent.bat").getAbsolutePath());
+      command.add("cmd.exe");
+      command.add("/c");
+      command.add(new File(workDir, "agent.bat").getAbsolutePath());
     } else {
-      cmd.setExePath("/bin/sh");
-      cmd.addParameter(new File(workDir, "agent.sh").getAbsolutePath());
+      command.add("/bin/sh");
+      command.add(new File(workDir, "agent.sh").getAbsolutePath());
+    }
+    Collections.addAll(command, params);
+
+    final File log = AgentProcesses.prepareLauncherLog(myBaseDir, command);
+    final ProcessBuilder builder = new ProcessBuilder(command)
+      .directory(workDir)
+      .redirectErrorStream(true)
+      .redirectOutput(ProcessBuilder.Redirect.appendTo(log));
+    //fix Java
+    builder.environment().put("JAVA_HOME", System.getProperty("java.home"));
+    builder.environment().putAll(env);
+
+    LOG.info("Running " + command + " for " + this + ", output is written to " + log);
+    final Process process = builder.start();
+    process.getOutputStream().close();
+    if (!process.waitFor(EXEC_TIMEOUT, TimeUnit.MILLISECONDS)) {
+      process.destroy();
+      throw new IOException("Agent script did not finish in " + EXEC_TIMEOUT / 1000 + " seconds, see " + log);
+    }
+
+    final int exitCode = process.exitValue();
+    if (exitCode != 0) {
+      LOG.warn("Agent script exited with code " + exitCode + " for " + this + "\n" + AgentProcesses.readTail(log, LAUNCHER_OUTPUT_TAIL_LINES));
+    }
+  }
+
+  /**
+   * Points the agent configuration of the instance folder to the server, the image and the instance
+   *
+   * @param patchIdentity true to set the agent name and the authorization token
+   */
+  static void updateAgentProperties(@NotNull final File baseDir,
+                                    @NotNull final CloudInstanceUserData data,
+                                    final boolean patchIdentity,
+                                    @NotNull final String imageId,
+                                    @NotNull final String instanceId) throws IOException {
+    File inConfigFile = new File(new File(baseDir, "conf"), "buildAgent.properties"), outConfigFile = inConfigFile;
+    if (!inConfigFile.isFile()) {
+      inConfigFile = new File(new File(baseDir, "conf"), "buildAgent.dist.properties");
+      if (!inConfigFile.isFile()) {
+        inConfigFile = null;
+      }
     }
-    cmd.addParameters(params);
+    final Properties config = PropertiesUtil.loadProperties(inConfigFile);
 
-    LOG.info("Starting agent: " + cmd.getCommandLineString());
-    ExecResult execResult = SimpleCommandLineProcessRunner.runCommand(cmd, null);
-    LOG.info("Execution finished: " + execResult.getExitCode());
-    LOG.info(execResult.getStdout());
-    LOG.info(execResult.getStderr());
+    config.put("serverUrl", data.getServerAddress());
+    config.put("workDir", "../work");
+    config.put("tempDir", "../temp");
+    config.put("systemDir", "../system");
+
+    if (patchIdentity) {
+      config.put("name", data.getAgentName());
+      config.put("authorizationToken", data.getAuthToken());
+    }
+    for (final Map.Entry<String, String> param : data.getCustomAgentConfigurationParameters().entrySet()) {
+      config.put(param.getKey(), param.getValue());
+    }
+    config.put(IMAGE_ID_PARAM_NAME, imageId);
+    config.put(INSTANCE_ID_PARAM_NAME, instanceId);
+    PropertiesUtil.storeProperties(config, outConfigFile, null);
   }
 
   private class StartAgentCommand implements Runnable {
@@ -221,106 +932,128 @@ public abstract class LocalCloudInstance implements CloudInstance {
     }
 
     private void copyAgentToDestFolder() throws IOException {
-      //do not re-extract agent
-      if (myIsAgentExtracted.getAndSet(true)) return;
-
-      final File agentHomeDir = myImage.getAgentHomeDir();
-      if (agentHomeDir.isDirectory()) {
-        FileUtil.copyDir(agentHomeDir, myBaseDir, new FileFilter() {
-          private final Set<String> ourDirsToNotToCopy = new HashSet<String>() {{
-            Collections.addAll(this, "work", "temp", "system", "contrib");
-          }};
-
-          public boolean accept(@NotNull final File file) {
-            return !file.isDirectory() || !file.getParentFile().equals(agentHomeDir) || !ourDirsToNotToCopy.contains(file.getName());
-          }
-        });
-      } else if (agentHomeDir.isFile() && agentHomeDir.getName().endsWith(".zip")) {
-        ZipUtil.extract(agentHomeDir, myBaseDir, new FilenameFilter() {
-
-          private final Set<String> ourDirsToNotToCopy = new HashSet<String>() {{
-            Collections.addAll(this, "work", "temp", "system", "contrib");
-          }};
-
-            public boolean accept(File dir, String name) {
-              final File file = new File(dir, name);
-              return !file.isDirectory() || !file.getParentFile().equals(agentHomeDir) || !ourDirsToNotToCopy.contains(file.getName());
-            }
-        });
+      //do not re-extract agent, only pick up template updates
+      if (myIsAgentExtracted.getAndSet(true)) {
+        myImage.syncWithTemplate(myBaseDir);
+        return;
       }
+
+      myImage.cloneTemplate(myBaseDir);
     }
 
     private void updateAgentProperties(@NotNull final CloudInstanceUserData data) throws IOException {
-      File inConfigFile = new File(new File(myBaseDir, "conf"), "buildAgent.properties"), outConfigFile = inConfigFile;
-      if (!inConfigFile.isFile()) {
-        inConfigFile = new File(new File(myBaseDir, "conf"), "buildAgent.dist.properties");
-        if (!inConfigFile.isFile()) {
-          inConfigFile = null;
-        }
-      }
-      final Properties config = PropertiesUtil.loadProperties(inConfigFile);
+      //agent name and auth-token must be patched only once
+      LocalCloudInstance.updateAgentProperties(myBaseDir, data, !myIsConfigPatched.getAndSet(true), getImageId(), myId);
+    }
 
-      config.put("serverUrl", data.getServerAddress());
-      config.put("workDir", "../work");
-      config.put("tempDir", "../temp");
-      config.put("systemDir", "../system");
+    /**
+     * @return false if permissions were already updated
+     */
+    private boolean updateAgentPermissions() {
+      if (SystemInfo.isWindows) return false;
+      if (!myIsAgentPermissionsUpdated.compareAndSet(false, true)) return false;
 
-      //agent name and auth-token must be patched only once
-      if (!myIsConfigPatched.getAndSet(true)) {
-        config.put("name", data.getAgentName());
-        config.put("authorizationToken", data.getAuthToken());
-      }
-      for (final Map.Entry<String, String> param : data.getCustomAgentConfigurationParameters().entrySet()) {
-        config.put(param.getKey(), param.getValue());
-      }
-      config.put(IMAGE_ID_PARAM_NAME, getImageId());
-      config.put(INSTANCE_ID_PARAM_NAME, myId);
-      PropertiesUtil.storeProperties(config, outConfigFile, null);
+      AgentHomeCloner.updateScriptPermissions(myBaseDir);
+      return true;
     }
 
-    private void updateAgentPermissions() {
-      if (SystemInfo.isWindows) return;
-      if (!myIsAgentPermissionsUpdated.compareAndSet(false, true)) return;
+    @Override
+    public void run() {
+      final ProvisioningMetrics metrics = myImage.getMetrics();
+      ProvisioningMetrics.Phase phase = ProvisioningMetrics.Phase.COPY;
+      myIsStartInProgress = true;
+      try {
+        //the instance could be terminated while the command was queued
+        if (getStatus() != InstanceStatus.STARTING) return;
+        if (myImage.isEternalStarting()) return;
 
-      for (String dir : new String[]{"bin", "launcher/bin"}) {
-        final File basePath = new File(myImage.getAgentHomeDir(), dir);
-        final File[] files = basePath.listFiles(new FilenameFilter() {
-          @Override
-          public boolean accept(File dir, String name) {
-            return name.endsWith(".sh");
+        //simulated instances have no agent files to prepare
+        if (myImage.getSimulation() == null) {
+          long phaseStart = System.nanoTime();
+          copyAgentToDestFolder();
+          phaseStart = metrics.phaseFinished(phase, phaseStart);
+          phase = ProvisioningMetrics.Phase.PERMISSIONS;
+          if (updateAgentPermissions()) {
+            phaseStart = metrics.phaseFinished(phase, phaseStart);
           }
-        });
-
-        if (files == null) {
-          LOG.warn("Failed to list files under " + basePath);
-          continue;
+          phase = ProvisioningMetrics.Phase.PROPERTIES;
+          updateAgentProperties(myData);
+          metrics.phaseFinished(phase, phaseStart);
         }
 
-        for (File file : files) {
-          try {
-            FileUtil.setExectuableAttribute(file.getAbsolutePath(), true);
-          } catch (IOException e) {
-            LOG.warn("Failed to set writable permission for " + file + ". " + e.getMessage());
-          }
+        phase = ProvisioningMetrics.Phase.LAUNCH;
+        myImage.getProvisioningScheduler().acquireLaunchPermit();
+        //the instance could be terminated while it was prepared
+        if (getStatus() != InstanceStatus.STARTING) return;
+        if (myImage.getSimulation() == null) {
+          acquireSharedCaches();
         }
+        launchAgent();
+      } catch (final Exception e) {
+        metrics.failed(phase, e);
+        processError(e);
+      } finally {
+        myIsStartInProgress = false;
       }
     }
+  }
 
-    @Override
+  private class TerminateCommand implements Runnable {
     public void run() {
-      try {
+      if (myIsStartInProgress) {
+        myAsync.schedule(ExceptionUtil.catchAll("terminate local cloud: " + LocalCloudInstance.this, this), PROCESS_EXIT_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+        return;
+      }
 
-        if (myImage.isEternalStarting()) return;
+      final Long pid = stopAgent();
+      if (pid == null) return;
+      whenAgentExited(pid, System.currentTimeMillis() + STOP_TIMEOUT, new Runnable() {
+        public void run() {
+          onStopped();
+        }
+      });
+    }
+  }
 
-        copyAgentToDestFolder();
-        updateAgentPermissions();
-        updateAgentProperties(myData);
+  private class RestartCommand implements Runnable {
+    private final long myDeadline;
 
-        doStart();
-        myStatus = InstanceStatus.RUNNING;
-      } catch (final Exception e) {
-        processError(e);
+    private RestartCommand(final long deadline) {
+      myDeadline = deadline;
+    }
+
+    public void run() {
+      final InstanceStatus status = getStatus();
+      if ((status == InstanceStatus.SCHEDULED_TO_START || status == InstanceStatus.STARTING) && System.currentTimeMillis() < myDeadline) {
+        myAsync.schedule(ExceptionUtil.catchAll("restart local cloud: " + LocalCloudInstance.this, this), PROCESS_EXIT_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+        return;
+      }
+
+      if (!moveTo(InstanceStatus.RESTARTING)) {
+        LOG.warn("Cannot restart " + LocalCloudInstance.this + " in status " + status);
+        return;
       }
+
+      final Long pid = stopAgent();
+      if (pid == null) return;
+      whenAgentExited(pid, System.currentTimeMillis() + STOP_TIMEOUT, new Runnable() {
+        public void run() {
+          myImage.getProvisioningScheduler().submit(getImageId(), "restart local cloud: " + LocalCloudInstance.this, new Runnable() {
+            public void run() {
+              try {
+                myImage.getProvisioningScheduler().acquireLaunchPermit();
+                if (!moveTo(InstanceStatus.STARTING)) return;
+                //leases are released if the instance failed before the restart
+                acquireSharedCaches();
+                launchAgent();
+              } catch (final Exception e) {
+                myImage.getMetrics().failed(ProvisioningMetrics.Phase.LAUNCH, e);
+                processError(e);
+              }
+            }
+          });
+        }
+      });
     }
   }
 }
@@ -0,0 +1,105 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.PrintWriter;
+import java.util.Map;
+
+/**
+ * Serves {@link ProvisioningMetrics} of all local cloud images in the Prometheus text format
+ */
+public class LocalCloudMetricsController extends BaseController {
+  public static final String PATH = "/localCloud/metrics.html";
+
+  @NotNull private final ProfileRuntimes myRuntimes;
+
+  public LocalCloudMetricsController(@NotNull final SBuildServer server,
+                                     @NotNull final WebControllerManager controllerManager,
+                                     @NotNull final LocalCloudClientFactory factory) {
+    super(server);
+    myRuntimes = factory.getRuntimes();
+    controllerManager.registerController(PATH, this);
+  }
+
+  @Nullable
+  @Override
+  protected ModelAndView doHandle(@NotNull final HttpServletRequest request, @NotNull final HttpServletResponse response) throws Exception {
+    response.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+    response.setHeader("Cache-Control", "no-cache");
+    final StringBuilder sb = new StringBuilder();
+    appendMetrics(sb);
+    final PrintWriter writer = response.getWriter();
+    writer.write(sb.toString());
+    writer.flush();
+    return null;
+  }
+
+  private void appendMetrics(@NotNull final StringBuilder sb) {
+    sb.append("# HELP local_cloud_phase_duration_seconds Duration of local cloud instance lifecycle phases\n");
+    sb.append("# TYPE local_cloud_phase_duration_seconds histogram\n");
+    final long[] bounds = ProvisioningMetrics.Histogram.getBucketBoundsMs();
+    for (ProfileRuntime runtime : myRuntimes.getRuntimes()) {
+      for (ProvisioningMetrics metrics : runtime.getAllMetrics()) {
+        for (ProvisioningMetrics.Phase phase : ProvisioningMetrics.Phase.values()) {
+          final ProvisioningMetrics.Histogram histogram = metrics.getHistogram(phase);
+          final String labels = labels(metrics) + ",phase=\"" + phase.getKey() + "\"";
+          final long[] counts = histogram.getBucketCounts();
+          long cumulative = 0;
+          for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            final String le = i < bounds.length ? String.valueOf(bounds[i] / 1000.0) : "+Inf";
+            sb.append("local_cloud_phase_duration_seconds_bucket{").append(labels).append(",le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+          }
+          sb.append("local_cloud_phase_duration_seconds_sum{").append(labels).append("} ").append(histogram.getSumMs() / 1000.0).append('\n');
+          sb.append("local_cloud_phase_duration_seconds_count{").append(labels).append("} ").append(cumulative).append('\n');
+        }
+      }
+    }
+
+    sb.append("# HELP local_cloud_starts_total Starts of local cloud instances\n");
+    sb.append("# TYPE local_cloud_starts_total counter\n");
+    for (ProfileRuntime runtime : myRuntimes.getRuntimes()) {
+      for (ProvisioningMetrics metrics : runtime.getAllMetrics()) {
+        sb.append("local_cloud_starts_total{").append(labels(metrics)).append("} ").append(metrics.getStartsCount()).append('\n');
+      }
+    }
+
+    sb.append("# HELP local_cloud_warm_starts_total Local cloud instances created from warm pool folders\n");
+    sb.append("# TYPE local_cloud_warm_starts_total counter\n");
+    for (ProfileRuntime runtime : myRuntimes.getRuntimes()) {
+      for (ProvisioningMetrics metrics : runtime.getAllMetrics()) {
+        sb.append("local_cloud_warm_starts_total{").append(labels(metrics)).append("} ").append(metrics.getWarmStartsCount()).append('\n');
+      }
+    }
+
+    sb.append("# HELP local_cloud_failures_total Failures of local cloud instances by phase and cause\n");
+    sb.append("# TYPE local_cloud_failures_total counter\n");
+    for (ProfileRuntime runtime : myRuntimes.getRuntimes()) {
+      for (ProvisioningMetrics metrics : runtime.getAllMetrics()) {
+        for (Map.Entry<String, Long> e : metrics.getFailuresByCause().entrySet()) {
+          sb.append("local_cloud_failures_total{").append(labels(metrics)).append(",cause=\"").append(escape(e.getKey())).append("\"} ")
+            .append(e.getValue()).append('\n');
+        }
+      }
+    }
+  }
+
+  @NotNull
+  private static String labels(@NotNull final ProvisioningMetrics metrics) {
+    return "profile=\"" + escape(metrics.getProfileId()) + "\",image=\"" + escape(metrics.getImageName()) + "\"";
+  }
+
+  @NotNull
+  private static String escape(@NotNull final String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
@@ -0,0 +1,350 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.*;
+
+import static jetbrains.buildServer.clouds.local.LocalCloudConstants.*;
+
+/**
+ * Parsed cloud profile parameters.
+ * <p/>
+ * Images are listed one per line as <code>&lt;name&gt;@&lt;agent home path&gt;</code>,
+ * image options are specified on separate lines as <code>@@&lt;name&gt;:&lt;option&gt;</code>.
+ * All lines are scanned once, problems are collected per profile property, so they can be reported both
+ * by the profile properties processor and by the cloud client.
+ */
+public class LocalCloudProfile {
+  @NotNull private final List<ImageSettings> myImages = new ArrayList<ImageSettings>();
+  @NotNull private final List<Problem> myProblems = new ArrayList<Problem>();
+  private final int myProvisioningThreads;
+  private final double myLaunchesPerSecond;
+  private final int myMaxInstances;
+  private final double myMaxLoadPerCore;
+  private final long myMinFreeDiskMb;
+  private final long myDiskBudgetMb;
+  @Nullable private final String myCgroupRoot;
+  private final int myReservedCpus;
+
+  private LocalCloudProfile(@NotNull final Map<String, String> params) {
+    myProvisioningThreads = Math.max(1, parsePositiveNumber(params, PROVISIONING_THREADS_PROFILE_SETTING,
+                                                            ProvisioningScheduler.DEFAULT_CONCURRENCY, "provisioning threads").intValue());
+    myLaunchesPerSecond = parsePositiveNumber(params, LAUNCHES_PER_SECOND_PROFILE_SETTING,
+                                              ProvisioningScheduler.DEFAULT_LAUNCHES_PER_SECOND, "agent launches per second").doubleValue();
+    myMaxInstances = parsePositiveNumber(params, MAX_INSTANCES_PROFILE_SETTING, 0, "maximum instances").intValue();
+    myMaxLoadPerCore = parsePositiveNumber(params, MAX_LOAD_PER_CORE_PROFILE_SETTING,
+                                           AdmissionControl.DEFAULT_MAX_LOAD_PER_CORE, "maximum load per core").doubleValue();
+    myMinFreeDiskMb = parsePositiveNumber(params, MIN_FREE_DISK_MB_PROFILE_SETTING,
+                                          AdmissionControl.DEFAULT_MIN_FREE_DISK_MB, "minimum free disk space").longValue();
+    myDiskBudgetMb = parsePositiveNumber(params, DISK_BUDGET_MB_PROFILE_SETTING, 0, "disk budget").longValue();
+    myReservedCpus = parsePositiveNumber(params, RESERVED_CPUS_PROFILE_SETTING, CpuPlacement.DEFAULT_RESERVED_CPUS, "reserved CPUs").intValue();
+    myCgroupRoot = StringUtil.isEmptyOrSpaces(params.get(CGROUP_ROOT_PROFILE_SETTING)) ? null : params.get(CGROUP_ROOT_PROFILE_SETTING).trim();
+    parseImages(params.get(IMAGES_PROFILE_SETTING));
+  }
+
+  @NotNull
+  public static LocalCloudProfile parse(@NotNull final Map<String, String> params) {
+    return new LocalCloudProfile(params);
+  }
+
+  @NotNull
+  public List<ImageSettings> getImages() {
+    return Collections.unmodifiableList(myImages);
+  }
+
+  @NotNull
+  public List<Problem> getProblems() {
+    return Collections.unmodifiableList(myProblems);
+  }
+
+  @Nullable
+  public String getProblemsDescription() {
+    if (myProblems.isEmpty()) return null;
+    final StringBuilder sb = new StringBuilder();
+    for (Problem problem : myProblems) {
+      if (sb.length() > 0) sb.append(' ');
+      sb.append(problem.getMessage());
+    }
+    return sb.toString();
+  }
+
+  public int getProvisioningThreads() {
+    return myProvisioningThreads;
+  }
+
+  public double getLaunchesPerSecond() {
+    return myLaunchesPerSecond;
+  }
+
+  public int getMaxInstances() {
+    return myMaxInstances;
+  }
+
+  public double getMaxLoadPerCore() {
+    return myMaxLoadPerCore;
+  }
+
+  public long getMinFreeDiskMb() {
+    return myMinFreeDiskMb;
+  }
+
+  /**
+   * @return maximum size of all instance folders of the profile, 0 if not limited
+   */
+  public long getDiskBudgetMb() {
+    return myDiskBudgetMb;
+  }
+
+  /**
+   * @return cgroup v2 folder to create instance groups under, null if instances run without cgroup limits
+   */
+  @Nullable
+  public String getCgroupRoot() {
+    return myCgroupRoot;
+  }
+
+  /**
+   * @return number of CPUs which are never assigned to instances, so the server keeps them
+   */
+  public int getReservedCpus() {
+    return myReservedCpus;
+  }
+
+  private void parseImages(@Nullable final String images) {
+    if (images == null || images.trim().length() == 0) {
+      myProblems.add(new Problem(IMAGES_PROFILE_SETTING, "No images specified."));
+      return;
+    }
+
+    final Map<String, ImageSettings> imagesByName = new LinkedHashMap<String, ImageSettings>();
+    final List<String> optionLines = new ArrayList<String>();
+    for (String line : StringUtil.splitByLines(images.trim())) {
+      line = line.trim();
+      if (line.isEmpty()) continue;
+      if (line.startsWith("@@")) {
+        optionLines.add(line.substring(2));
+        continue;
+      }
+
+      final int atPos = line.indexOf('@');
+      if (atPos < 0) {
+        imagesProblem("Failed to parse image info: \"" + line + "\".");
+        continue;
+      }
+
+      final String imageName = line.substring(0, atPos).trim();
+      if (imagesByName.containsKey(imageName)) {
+        imagesProblem("Image \"" + imageName + "\" is specified more than once.");
+        continue;
+      }
+      imagesByName.put(imageName, new ImageSettings(imageName, line.substring(atPos + 1).trim()));
+    }
+
+    for (String line : optionLines) {
+      final ImageSettings image = findImage(imagesByName, line);
+      if (image == null) {
+        imagesProblem("Unknown image in \"@@" + line + "\".");
+        continue;
+      }
+      parseOption(image, line.substring(image.getName().length() + 1).trim());
+    }
+
+    myImages.addAll(imagesByName.values());
+  }
+
+  /**
+   * @return image whose name is followed by a colon in the option line, the longest name wins as names may contain colons
+   */
+  @Nullable
+  private static ImageSettings findImage(@NotNull final Map<String, ImageSettings> imagesByName, @NotNull final String optionLine) {
+    final int colonPos = optionLine.indexOf(':');
+    if (colonPos < 0) return null;
+
+    final ImageSettings image = imagesByName.get(optionLine.substring(0, colonPos));
+    ImageSettings result = image;
+    for (ImageSettings candidate : imagesByName.values()) {
+      final String name = candidate.getName();
+      if (name.length() > colonPos && optionLine.startsWith(name + ":") && (result == null || name.length() > result.getName().length())) {
+        result = candidate;
+      }
+    }
+    return result;
+  }
+
+  private void parseOption(@NotNull final ImageSettings image, @NotNull final String option) {
+    final String imageName = image.getName();
+    if (option.equals("reuse")) {
+      image.setReusable(true);
+    } else if (option.equals("delay")) {
+      image.setEternalStarting(true);
+    } else if (option.equals("capture")) {
+      image.setCaptureEnabled(true);
+    } else if (option.startsWith("agentPoolId:")) {
+      final Integer poolId = parseInt(option.substring("agentPoolId:".length()), "agent pool id", imageName);
+      if (poolId != null) image.setAgentPoolId(poolId);
+    } else if (option.startsWith("prop:")) {
+      final String[] kv = option.substring("prop:".length()).trim().split("=", 2);
+      if (kv.length == 2) {
+        image.addExtraProperty(kv[0].trim(), kv[1].trim());
+      } else {
+        imagesProblem("Failed to parse agent property \"" + option + "\" for image \"" + imageName + "\".");
+      }
+    } else if (option.startsWith("sharedCache=")) {
+      final String[] nameAndPath = option.substring("sharedCache=".length()).split(":", 2);
+      final String cacheName = nameAndPath[0].trim();
+      if (nameAndPath.length != 2 || !cacheName.matches("[\\w.-]+") || !new File(nameAndPath[1].trim()).isAbsolute()) {
+        imagesProblem("Failed to parse shared cache \"" + option + "\" for image \"" + imageName + "\", expected sharedCache=<name>:<absolute path>.");
+      } else {
+        image.addSharedCache(cacheName, nameAndPath[1].trim());
+      }
+    } else if (option.startsWith("clone=")) {
+      final String modeName = option.substring("clone=".length()).trim();
+      final CloneMode cloneMode = CloneMode.fromName(modeName);
+      if (cloneMode == null) {
+        imagesProblem("Unknown clone mode \"" + modeName + "\" for image \"" + imageName + "\".");
+      } else {
+        image.setCloneMode(cloneMode);
+      }
+    } else if (option.startsWith("launch=")) {
+      final String modeName = option.substring("launch=".length()).trim();
+      final LaunchMode launchMode = LaunchMode.fromName(modeName);
+      if (launchMode == null) {
+        imagesProblem("Unknown launch mode \"" + modeName + "\" for image \"" + imageName + "\".");
+      } else {
+        image.setLaunchMode(launchMode);
+      }
+    } else if (option.startsWith("warm=")) {
+      final Integer size = parseInt(option.substring("warm=".length()), "warm pool size", imageName);
+      if (size != null) image.setWarmPoolSize(size);
+    } else if (option.startsWith("max=")) {
+      final Integer max = parseInt(option.substring("max=".length()), "maximum instances", imageName);
+      if (max != null) image.setMaxInstances(max);
+    } else if (option.startsWith("memory=")) {
+      final Integer memory = parseInt(option.substring("memory=".length()), "memory footprint", imageName);
+      if (memory != null) image.setMemoryFootprintMb(memory);
+    } else if (option.startsWith("cpus=")) {
+      final Integer cpus = parseInt(option.substring("cpus=".length()), "CPUs per instance", imageName);
+      if (cpus != null) image.setCpusPerInstance(cpus);
+    } else if (option.startsWith("cpuWeight=")) {
+      final Integer weight = parseWeight(option.substring("cpuWeight=".length()), "CPU weight", imageName);
+      if (weight != null) image.setCpuWeight(weight);
+    } else if (option.startsWith("cpuQuota=")) {
+      final Integer quota = parseInt(option.substring("cpuQuota=".length()), "CPU quota", imageName);
+      if (quota != null) image.setCpuQuotaPercent(quota);
+    } else if (option.startsWith("memoryMax=")) {
+      final Integer memoryMax = parseInt(option.substring("memoryMax=".length()), "memory limit", imageName);
+      if (memoryMax != null) image.setMemoryMaxMb(memoryMax);
+    } else if (option.startsWith("ioWeight=")) {
+      final Integer weight = parseWeight(option.substring("ioWeight=".length()), "IO weight", imageName);
+      if (weight != null) image.setIoWeight(weight);
+    } else if (option.equals("autoRestart")) {
+      image.setAutoRestarts(ImageSettings.DEFAULT_AUTO_RESTARTS);
+    } else if (option.startsWith("autoRestart=")) {
+      final Integer restarts = parseInt(option.substring("autoRestart=".length()), "automatic restarts", imageName);
+      if (restarts != null) image.setAutoRestarts(restarts);
+    } else if (option.equals("simulate") || option.startsWith("simulate=")) {
+      final AgentSimulation simulation = parseSimulation(option, imageName);
+      if (simulation != null) image.setSimulation(simulation);
+    } else if (option.startsWith("diskCap=")) {
+      final Integer diskCap = parseInt(option.substring("diskCap=".length()), "disk cap", imageName);
+      if (diskCap != null) image.setDiskCapMb(diskCap);
+    } else {
+      imagesProblem("Unknown option \"" + option + "\" for image \"" + imageName + "\".");
+    }
+  }
+
+  @Nullable
+  private Integer parseInt(@NotNull final String value, @NotNull final String description, @NotNull final String imageName) {
+    try {
+      final int result = Integer.parseInt(value.trim());
+      if (result >= 0) return result;
+    } catch (NumberFormatException e) {
+      //reported below
+    }
+    imagesProblem("Failed to parse " + description + " \"" + value.trim() + "\" for image \"" + imageName + "\".");
+    return null;
+  }
+
+  /**
+   * @return cgroup weight, which must be within 1..10000
+   */
+  @Nullable
+  private Integer parseWeight(@NotNull final String value, @NotNull final String description, @NotNull final String imageName) {
+    final Integer weight = parseInt(value, description, imageName);
+    if (weight == null || weight >= 1 && weight <= 10000) return weight;
+    imagesProblem("The " + description + " of image \"" + imageName + "\" must be within 1..10000.");
+    return null;
+  }
+
+  /**
+   * @param option <code>simulate</code> for the default latencies or <code>simulate=&lt;median&gt;,&lt;95th percentile&gt;[,&lt;failure percent&gt;]</code>
+   */
+  @Nullable
+  private AgentSimulation parseSimulation(@NotNull final String option, @NotNull final String imageName) {
+    if (option.equals("simulate")) {
+      return new AgentSimulation(AgentSimulation.DEFAULT_MEDIAN_MS, AgentSimulation.DEFAULT_P95_MS, 0);
+    }
+    final String[] parts = option.substring("simulate=".length()).split(",");
+    try {
+      if (parts.length == 2 || parts.length == 3) {
+        final int median = Integer.parseInt(parts[0].trim());
+        final int p95 = Integer.parseInt(parts[1].trim());
+        final double failurePercent = parts.length == 3 ? Double.parseDouble(parts[2].trim()) : 0;
+        if (median >= 0 && p95 >= median && failurePercent >= 0 && failurePercent <= 100) {
+          return new AgentSimulation(median, p95, failurePercent);
+        }
+      }
+    } catch (NumberFormatException e) {
+      //reported below
+    }
+    imagesProblem("Failed to parse simulation \"" + option + "\" for image \"" + imageName +
+                  "\", expected simulate=<median ms>,<95th percentile ms>[,<failure percent>].");
+    return null;
+  }
+
+  private void imagesProblem(@NotNull final String message) {
+    myProblems.add(new Problem(IMAGES_PROFILE_SETTING, message));
+  }
+
+  @NotNull
+  private Number parsePositiveNumber(@NotNull final Map<String, String> params,
+                                     @NotNull final String name,
+                                     @NotNull final Number defaultValue,
+                                     @NotNull final String description) {
+    final String value = params.get(name);
+    if (value == null || value.trim().length() == 0) return defaultValue;
+    try {
+      final double number = Double.parseDouble(value.trim());
+      if (number > 0) return number;
+    } catch (NumberFormatException e) {
+      //reported below
+    }
+    myProblems.add(new Problem(name, "Failed to parse " + description + ": \"" + value + "\", " + defaultValue + " is used."));
+    return defaultValue;
+  }
+
+  public static class Problem {
+    @NotNull private final String myPropertyName;
+    @NotNull private final String myMessage;
+
+    public Problem(@NotNull final String propertyName, @NotNull final String message) {
+      myPropertyName = propertyName;
+      myMessage = message;
+    }
+
+    @NotNull
+    public String getPropertyName() {
+      return myPropertyName;
+    }
+
+    @NotNull
+    public String getMessage() {
+      return myMessage;
+    }
+  }
+}
@@ -4,9 +4,10 @@ package jetbrains.buildServer.clouds.local;
 
 import jetbrains.buildServer.clouds.CloudConstants;
 import jetbrains.buildServer.clouds.CloudInstanceUserData;
-import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.clouds.InstanceStatus;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.File;
 import java.util.concurrent.ScheduledExecutorService;
 
 public class OneUseLocalCloudInstance extends LocalCloudInstance {
@@ -17,6 +18,14 @@ public class OneUseLocalCloudInstance extends LocalCloudInstance {
     super(image, instanceId, executor);
   }
 
+  OneUseLocalCloudInstance(@NotNull final String instanceId,
+                           @NotNull final LocalCloudImage image,
+                           @NotNull final ScheduledExecutorService executor,
+                           @NotNull final File baseDir,
+                           @NotNull final InstanceStatus status) {
+    super(image, instanceId, executor, baseDir, status);
+  }
+
   @Override
   public boolean isRestartable() {
     return false;
@@ -25,7 +34,7 @@ public class OneUseLocalCloudInstance extends LocalCloudInstance {
   @Override
   protected void cleanupStoppedInstance() {
     getImage().forgetInstance(this);
-    FileUtil.symlinkAwareDelete(getBaseDir());
+    getImage().getDiskReclaimer().reclaim(getBaseDir());
   }
 
   @Override
@@ -0,0 +1,322 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.util.ExceptionUtil;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.NamedDeamonThreadFactory;
+import jetbrains.buildServer.util.WaitFor;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executors, instance index and images of a cloud profile.
+ * Editing a profile creates a new cloud client, the runtime is passed from the old client to the new one,
+ * so images which are not changed keep their running instances and folders.
+ * Instances are recorded in the {@link InstanceJournal}, the first profile applied after a server restart
+ * re-attaches them to images with the same names and deletes folders nobody can use.
+ */
+public class ProfileRuntime {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(ProfileRuntime.class);
+  private static final int ORPHAN_STOP_TIMEOUT = 60 * 1000;
+  private static final long DISK_BUDGET_CHECK_INTERVAL_MINUTES = 5;
+  private static final long LIVENESS_CHECK_INTERVAL_SECONDS = 5;
+
+  @NotNull private final String myProfileId;
+  @NotNull private final ScheduledExecutorService myExecutor = Executors.newSingleThreadScheduledExecutor(new NamedDeamonThreadFactory("local-cloud-image"));
+  @NotNull private final ProvisioningScheduler myProvisioningScheduler;
+  @NotNull private final ExecutorService myDisposeExecutor;
+  @NotNull private final InstanceIndex myInstanceIndex = new InstanceIndex();
+  @NotNull private final IdGenerator myImageIdGenerator = new IdGenerator();
+  @NotNull private final InstanceJournal myJournal;
+  @NotNull private final DiskReclaimer myDiskReclaimer;
+  @NotNull private final DiskBudget myDiskBudget;
+  @NotNull private final SharedCaches mySharedCaches;
+  @NotNull private final CpuPlacement myCpuPlacement;
+  @NotNull private final AgentCgroups myAgentCgroups = new AgentCgroups();
+  @NotNull private Map<String, LocalCloudImage> myImagesByName = new LinkedHashMap<String, LocalCloudImage>();
+  @NotNull private final Map<String, ProvisioningMetrics> myMetricsByImageName = new HashMap<String, ProvisioningMetrics>();
+  private boolean myIsReconciled;
+
+  public ProfileRuntime(@NotNull final String profileId,
+                        @NotNull final File journalFile,
+                        @NotNull final DiskReclaimer diskReclaimer,
+                        @NotNull final SharedCaches sharedCaches,
+                        @NotNull final CpuPlacement cpuPlacement,
+                        @NotNull final ExecutorService disposeExecutor) {
+    myProfileId = profileId;
+    myDisposeExecutor = disposeExecutor;
+    myProvisioningScheduler = new ProvisioningScheduler(ProvisioningScheduler.DEFAULT_CONCURRENCY, ProvisioningScheduler.DEFAULT_LAUNCHES_PER_SECOND);
+    myJournal = new InstanceJournal(journalFile, myExecutor);
+    for (String imageId : myJournal.getRecoveredImageIds()) {
+      myImageIdGenerator.advanceTo(imageId);
+    }
+    myDiskReclaimer = diskReclaimer;
+    myDiskBudget = new DiskBudget(diskReclaimer);
+    mySharedCaches = sharedCaches;
+    myCpuPlacement = cpuPlacement;
+    myExecutor.scheduleWithFixedDelay(ExceptionUtil.catchAll("schedule local cloud disk budget check", new Runnable() {
+      public void run() {
+        myDiskBudget.checkAsync(getImages());
+      }
+    }), DISK_BUDGET_CHECK_INTERVAL_MINUTES, DISK_BUDGET_CHECK_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    myExecutor.scheduleWithFixedDelay(ExceptionUtil.catchAll("check local cloud agents liveness", new Runnable() {
+      public void run() {
+        for (LocalCloudImage image : getImages()) {
+          image.checkLiveness();
+        }
+      }
+    }), LIVENESS_CHECK_INTERVAL_SECONDS, LIVENESS_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+  }
+
+  @NotNull
+  public String getProfileId() {
+    return myProfileId;
+  }
+
+  @NotNull
+  public ScheduledExecutorService getExecutor() {
+    return myExecutor;
+  }
+
+  @NotNull
+  public ProvisioningScheduler getProvisioningScheduler() {
+    return myProvisioningScheduler;
+  }
+
+  @NotNull
+  public InstanceIndex getInstanceIndex() {
+    return myInstanceIndex;
+  }
+
+  @NotNull
+  public InstanceJournal getJournal() {
+    return myJournal;
+  }
+
+  /**
+   * @return folder for persistent data of the plugin, e.g. class data sharing archives
+   */
+  @NotNull
+  public File getDataDir() {
+    return myJournal.getFile().getParentFile();
+  }
+
+  /**
+   * @return folder for agent templates captured by images of the profile, see {@link GoldenImage}
+   */
+  @NotNull
+  public File getGoldenImagesDir() {
+    return new File(new File(getDataDir(), "golden"), myProfileId.replaceAll("[^\\w.-]", "_"));
+  }
+
+  /**
+   * @return folder for class data sharing archives of images of the profile, see {@link CdsArchive}
+   */
+  @NotNull
+  public File getCdsArchivesDir() {
+    return new File(new File(getDataDir(), "cds"), myProfileId.replaceAll("[^\\w.-]", "_"));
+  }
+
+  @NotNull
+  public CpuPlacement getCpuPlacement() {
+    return myCpuPlacement;
+  }
+
+  @NotNull
+  public AgentCgroups getAgentCgroups() {
+    return myAgentCgroups;
+  }
+
+  @NotNull
+  public SharedCaches getSharedCaches() {
+    return mySharedCaches;
+  }
+
+  @NotNull
+  public DiskReclaimer getDiskReclaimer() {
+    return myDiskReclaimer;
+  }
+
+  @NotNull
+  public DiskBudget getDiskBudget() {
+    return myDiskBudget;
+  }
+
+  /**
+   * @return metrics of the image with the given name, they are kept while the profile has such an image
+   */
+  @NotNull
+  public synchronized ProvisioningMetrics getMetrics(@NotNull final String imageName) {
+    ProvisioningMetrics metrics = myMetricsByImageName.get(imageName);
+    if (metrics == null) {
+      metrics = new ProvisioningMetrics(myProfileId, imageName);
+      metrics.registerMBean();
+      myMetricsByImageName.put(imageName, metrics);
+    }
+    return metrics;
+  }
+
+  @NotNull
+  public synchronized List<ProvisioningMetrics> getAllMetrics() {
+    return new ArrayList<ProvisioningMetrics>(myMetricsByImageName.values());
+  }
+
+  @NotNull
+  public synchronized List<LocalCloudImage> getImages() {
+    return new ArrayList<LocalCloudImage>(myImagesByName.values());
+  }
+
+  /**
+   * Brings images in line with the profile: images with unchanged settings are kept as is,
+   * changed and removed images are disposed in background, new images are created
+   *
+   * @return images of the profile in the profile order
+   */
+  @NotNull
+  public synchronized List<LocalCloudImage> applyProfile(@NotNull final LocalCloudProfile profile) {
+    myProvisioningScheduler.reconfigure(profile.getProvisioningThreads(), profile.getLaunchesPerSecond());
+    myDiskBudget.setBudgetMb(profile.getDiskBudgetMb());
+    myAgentCgroups.setRoot(profile.getCgroupRoot());
+    myCpuPlacement.setReservedCpus(myProfileId, profile.getReservedCpus());
+
+    final Map<String, LocalCloudImage> previousImages = new HashMap<String, LocalCloudImage>(myImagesByName);
+    final Map<String, LocalCloudImage> images = new LinkedHashMap<String, LocalCloudImage>();
+    final Set<String> usedIds = new HashSet<String>();
+    for (LocalCloudImage image : previousImages.values()) {
+      usedIds.add(image.getId());
+    }
+    final List<InstanceJournal.Entry> orphans = new ArrayList<InstanceJournal.Entry>();
+    for (ImageSettings settings : profile.getImages()) {
+      final LocalCloudImage previous = previousImages.remove(settings.getName());
+      if (previous != null && previous.getSettings().equals(settings)) {
+        images.put(settings.getName(), previous);
+        continue;
+      }
+      if (previous != null) {
+        LOG.info("Settings of local cloud image " + settings.getName() + " are changed, its instances will be terminated");
+        disposeAsync(previous);
+      }
+
+      //agents of re-attached instances know their image id, so it is kept
+      final List<InstanceJournal.Entry> recovered = myJournal.takeRecovered(settings.getName());
+      final String recoveredId = recovered.isEmpty() ? null : recovered.get(0).getImageId();
+      final String imageId = recoveredId != null && usedIds.add(recoveredId) ? recoveredId : myImageIdGenerator.next();
+      usedIds.add(imageId);
+
+      final LocalCloudImage image = new LocalCloudImage(imageId, settings, this);
+      orphans.addAll(image.reattach(recovered));
+      image.fillWarmPool();
+      images.put(settings.getName(), image);
+    }
+    if (!myIsReconciled) {
+      myIsReconciled = true;
+      orphans.addAll(myJournal.takeAllRecovered());
+      collectOrphans(orphans, myJournal.takeRecoveredWarmDirs());
+    }
+    for (LocalCloudImage removed : previousImages.values()) {
+      LOG.info("Local cloud image " + removed.getName() + " is removed from the profile, its instances will be terminated");
+      disposeAsync(removed);
+      final ProvisioningMetrics metrics = myMetricsByImageName.remove(removed.getName());
+      if (metrics != null) {
+        metrics.unregisterMBean();
+      }
+    }
+
+    myImagesByName = images;
+    myDiskBudget.checkAsync(images.values());
+    return new ArrayList<LocalCloudImage>(images.values());
+  }
+
+  /**
+   * Releases images and stops executors
+   *
+   * @param serverShutdown true if the profile still exists, running agents and folders of reusable instances are kept
+   *                       for the next server run, false if the profile is removed and all instances are terminated
+   */
+  public void dispose(final boolean serverShutdown) {
+    final List<LocalCloudImage> images;
+    final List<ProvisioningMetrics> metricsList;
+    synchronized (this) {
+      images = new ArrayList<LocalCloudImage>(myImagesByName.values());
+      myImagesByName = new LinkedHashMap<String, LocalCloudImage>();
+      metricsList = new ArrayList<ProvisioningMetrics>(myMetricsByImageName.values());
+      myMetricsByImageName.clear();
+    }
+    //instances of a removed profile are stopped in parallel, the runtime is not locked meanwhile
+    for (LocalCloudImage image : images) {
+      image.dispose(serverShutdown);
+    }
+    for (ProvisioningMetrics metrics : metricsList) {
+      metrics.unregisterMBean();
+    }
+    myExecutor.shutdown();
+    myDiskBudget.shutdown();
+    myProvisioningScheduler.shutdown();
+    if (serverShutdown) {
+      myJournal.flush();
+    } else {
+      myJournal.delete();
+      FileUtil.delete(getGoldenImagesDir());
+      FileUtil.delete(getCdsArchivesDir());
+      myCpuPlacement.setReservedCpus(myProfileId, 0);
+    }
+  }
+
+  private void disposeAsync(@NotNull final LocalCloudImage image) {
+    //the id of a changed image is reused by its replacement, so the dispose must not occupy the provisioning worker of the id
+    myDisposeExecutor.submit(ExceptionUtil.catchAll("dispose local cloud image " + image.getName(), new Runnable() {
+      public void run() {
+        image.dispose(false);
+      }
+    }));
+  }
+
+  /**
+   * Deletes folders recorded by the previous server run which no image has taken, running agents are stopped first
+   */
+  private void collectOrphans(@NotNull final List<InstanceJournal.Entry> orphans, @NotNull final List<File> warmDirs) {
+    if (orphans.isEmpty() && warmDirs.isEmpty()) return;
+
+    myProvisioningScheduler.submit("orphans", "delete orphaned local cloud folders of profile " + myProfileId, new Runnable() {
+      public void run() {
+        for (File dir : warmDirs) {
+          myDiskReclaimer.reclaim(dir);
+        }
+        for (InstanceJournal.Entry orphan : orphans) {
+          if (orphan.isAgentAlive() && !stopOrphan(orphan)) continue;
+          LOG.info("Deleting orphaned " + orphan);
+          myDiskReclaimer.reclaim(orphan.getBaseDir());
+        }
+      }
+    });
+  }
+
+  private boolean stopOrphan(@NotNull final InstanceJournal.Entry orphan) {
+    LOG.info("Stopping agent of orphaned " + orphan);
+    //never kill a process which took the pid of the agent after a reboot
+    final Long pid = orphan.getAgentPid();
+    if (pid == null || !AgentProcesses.kill(pid)) {
+      LOG.warn("Failed to stop agent of orphaned " + orphan + ", its folder is kept");
+      return false;
+    }
+    final boolean exited = new WaitFor(ORPHAN_STOP_TIMEOUT) {
+      @Override
+      protected boolean condition() {
+        return !AgentProcesses.isAlive(pid);
+      }
+    }.isConditionRealized();
+    if (!exited) {
+      LOG.warn("Agent of orphaned " + orphan + " is still running " + ORPHAN_STOP_TIMEOUT / 1000 + " seconds after stop, its folder is kept");
+    }
+    return exited;
+  }
+}
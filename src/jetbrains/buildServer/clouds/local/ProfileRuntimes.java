@@ -0,0 +1,140 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.util.ExceptionUtil;
+import jetbrains.buildServer.util.NamedDeamonThreadFactory;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps runtimes of cloud profiles between cloud clients.
+ * <p/>
+ * The server disposes the old client and creates a new one on every profile change, in either order.
+ * A runtime released by a disposed client is retained for a while, if no new client of the profile
+ * takes it, the profile is considered removed and its instances are terminated.
+ * On server shutdown runtimes are disposed immediately, instance journals of the profiles are kept for the next server run.
+ */
+public class ProfileRuntimes extends BuildServerAdapter {
+  private static final long RETAIN_TIMEOUT_SECONDS = 120;
+
+  @NotNull private final File myJournalsDir;
+  @NotNull private final DiskReclaimer myDiskReclaimer = new DiskReclaimer();
+  @NotNull private final SharedCaches mySharedCaches = new SharedCaches();
+  @NotNull private final CpuPlacement myCpuPlacement = new CpuPlacement();
+  //stopping instances of a removed profile or image takes long, it must not block executors of the profile runtime
+  @NotNull private final ExecutorService myDisposeExecutor = Executors.newCachedThreadPool(new NamedDeamonThreadFactory("local-cloud-profile-dispose"));
+  @NotNull private final Map<String, ProfileRuntime> myRuntimes = new HashMap<String, ProfileRuntime>();
+  @NotNull private final Map<String, Integer> myGenerations = new HashMap<String, Integer>();
+  private boolean myIsServerShuttingDown;
+
+  public ProfileRuntimes(@NotNull final File journalsDir) {
+    myJournalsDir = journalsDir;
+  }
+
+  @NotNull
+  public synchronized Lease acquire(@NotNull final String profileId) {
+    ProfileRuntime runtime = myRuntimes.get(profileId);
+    if (runtime == null) {
+      runtime = new ProfileRuntime(profileId, new File(myJournalsDir, "instances-" + profileId.replaceAll("[^\\w.-]", "_") + ".properties"), myDiskReclaimer, mySharedCaches, myCpuPlacement, myDisposeExecutor);
+      myRuntimes.put(profileId, runtime);
+    }
+    final Integer generation = myGenerations.get(profileId);
+    final int nextGeneration = generation == null ? 1 : generation + 1;
+    myGenerations.put(profileId, nextGeneration);
+    return new Lease(runtime, nextGeneration);
+  }
+
+  /**
+   * @return runtimes of all profiles which are not disposed
+   */
+  @NotNull
+  public synchronized List<ProfileRuntime> getRuntimes() {
+    return new ArrayList<ProfileRuntime>(myRuntimes.values());
+  }
+
+  @Override
+  public void serverShutdown() {
+    final Map<String, ProfileRuntime> runtimes;
+    synchronized (this) {
+      myIsServerShuttingDown = true;
+      runtimes = new HashMap<String, ProfileRuntime>(myRuntimes);
+      myRuntimes.clear();
+    }
+    for (ProfileRuntime runtime : runtimes.values()) {
+      runtime.dispose(true);
+    }
+    myDisposeExecutor.shutdown();
+    myDiskReclaimer.shutdown();
+  }
+
+  private void release(@NotNull final Lease lease) {
+    final String profileId = lease.myRuntime.getProfileId();
+    synchronized (this) {
+      if (!isCurrent(lease)) return;
+      if (!myIsServerShuttingDown) {
+        lease.myRuntime.getExecutor().schedule(ExceptionUtil.catchAll("dispose local cloud profile " + profileId, new Runnable() {
+          public void run() {
+            disposeIfNotTaken(lease);
+          }
+        }), RETAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        return;
+      }
+      myRuntimes.remove(profileId);
+    }
+    lease.myRuntime.dispose(true);
+  }
+
+  private void disposeIfNotTaken(@NotNull final Lease lease) {
+    synchronized (this) {
+      if (!isCurrent(lease)) return;
+      myRuntimes.remove(lease.myRuntime.getProfileId());
+      myGenerations.remove(lease.myRuntime.getProfileId());
+    }
+    myDisposeExecutor.submit(ExceptionUtil.catchAll("dispose removed local cloud profile " + lease.myRuntime.getProfileId(), new Runnable() {
+      public void run() {
+        lease.myRuntime.dispose(false);
+      }
+    }));
+  }
+
+  /**
+   * @return true if no newer client has taken the runtime
+   */
+  private boolean isCurrent(@NotNull final Lease lease) {
+    final String profileId = lease.myRuntime.getProfileId();
+    final Integer generation = myGenerations.get(profileId);
+    return myRuntimes.get(profileId) == lease.myRuntime && generation != null && generation == lease.myGeneration;
+  }
+
+  public class Lease {
+    @NotNull private final ProfileRuntime myRuntime;
+    private final int myGeneration;
+
+    private Lease(@NotNull final ProfileRuntime runtime, final int generation) {
+      myRuntime = runtime;
+      myGeneration = generation;
+    }
+
+    @NotNull
+    public ProfileRuntime getRuntime() {
+      return myRuntime;
+    }
+
+    /**
+     * Called on the cloud client dispose, the runtime is disposed unless a new client takes it soon
+     */
+    public void release() {
+      ProfileRuntimes.this.release(this);
+    }
+  }
+}
@@ -0,0 +1,314 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Durations of instance lifecycle phases and failures of an image, exposed through JMX,
+ * the metrics endpoint and the image details.
+ * <p/>
+ * Metrics are kept by the profile runtime under the image name, so they survive changes of the image settings
+ * and a regression caused by a change shows up in the same histograms.
+ */
+public class ProvisioningMetrics implements ProvisioningMetricsMXBean {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(ProvisioningMetrics.class);
+  static final String JMX_DOMAIN = "jetbrains.buildServer.clouds.local";
+
+  public enum Phase {
+    BASE_DIR("base dir"),
+    COPY("copy"),
+    PERMISSIONS("permissions"),
+    PROPERTIES("properties"),
+    LAUNCH("launch"),
+    REGISTRATION("registration"),
+    /** time from the registration to the stop or to the death of the agent */
+    RUN("run"),
+    STOP("stop"),
+    CLEANUP("cleanup");
+
+    @NotNull private final String myDisplayName;
+
+    Phase(@NotNull final String displayName) {
+      myDisplayName = displayName;
+    }
+
+    @NotNull
+    public String getDisplayName() {
+      return myDisplayName;
+    }
+
+    /**
+     * @return name used in metric labels and JMX attributes
+     */
+    @NotNull
+    public String getKey() {
+      return name().toLowerCase(Locale.ENGLISH);
+    }
+  }
+
+  @NotNull private final String myProfileId;
+  @NotNull private final String myImageName;
+  @NotNull private final Map<Phase, Histogram> myHistograms = new EnumMap<Phase, Histogram>(Phase.class);
+  @NotNull private final Map<String, AtomicLong> myFailuresByCause = new ConcurrentHashMap<String, AtomicLong>();
+  @NotNull private final AtomicLong myStarts = new AtomicLong();
+  @NotNull private final AtomicLong myWarmStarts = new AtomicLong();
+  @NotNull private final AtomicLong myFailures = new AtomicLong();
+  @Nullable private volatile ObjectName myObjectName;
+
+  public ProvisioningMetrics(@NotNull final String profileId, @NotNull final String imageName) {
+    myProfileId = profileId;
+    myImageName = imageName;
+    for (Phase phase : Phase.values()) {
+      myHistograms.put(phase, new Histogram());
+    }
+  }
+
+  @NotNull
+  public String getProfileId() {
+    return myProfileId;
+  }
+
+  @NotNull
+  public String getImageName() {
+    return myImageName;
+  }
+
+  void startRequested() {
+    myStarts.incrementAndGet();
+  }
+
+  /**
+   * A new instance got a folder prepared by the warm pool, so it skips the base dir and copy phases
+   */
+  void warmDirTaken() {
+    myWarmStarts.incrementAndGet();
+  }
+
+  /**
+   * Records the phase which began at the given {@link System#nanoTime()}
+   *
+   * @return current {@link System#nanoTime()}, the beginning of the next phase
+   */
+  long phaseFinished(@NotNull final Phase phase, final long startNanos) {
+    final long now = System.nanoTime();
+    record(phase, TimeUnit.NANOSECONDS.toMillis(now - startNanos));
+    return now;
+  }
+
+  void record(@NotNull final Phase phase, final long durationMs) {
+    myHistograms.get(phase).record(durationMs);
+  }
+
+  void failed(@NotNull final Phase phase, @NotNull final Throwable cause) {
+    failed(phase, cause.getClass().getSimpleName());
+  }
+
+  /**
+   * @param cause short description without instance specific details, failures are counted by it
+   */
+  void failed(@NotNull final Phase phase, @NotNull final String cause) {
+    myFailures.incrementAndGet();
+    final String key = phase.getKey() + ": " + cause;
+    AtomicLong counter = myFailuresByCause.get(key);
+    if (counter == null) {
+      final AtomicLong created = new AtomicLong();
+      counter = myFailuresByCause.putIfAbsent(key, created);
+      if (counter == null) counter = created;
+    }
+    counter.incrementAndGet();
+  }
+
+  @NotNull
+  public Histogram getHistogram(@NotNull final Phase phase) {
+    return myHistograms.get(phase);
+  }
+
+  /**
+   * @return histograms of phases which were recorded at least once, in the lifecycle order
+   */
+  @NotNull
+  public Map<Phase, Histogram> getRecordedHistograms() {
+    final Map<Phase, Histogram> result = new LinkedHashMap<Phase, Histogram>();
+    for (Map.Entry<Phase, Histogram> e : myHistograms.entrySet()) {
+      if (e.getValue().getCount() > 0) result.put(e.getKey(), e.getValue());
+    }
+    return result;
+  }
+
+  public long getStartsCount() {
+    return myStarts.get();
+  }
+
+  public long getWarmStartsCount() {
+    return myWarmStarts.get();
+  }
+
+  public long getFailuresCount() {
+    return myFailures.get();
+  }
+
+  @NotNull
+  public Map<String, Long> getFailuresByCause() {
+    final Map<String, Long> result = new TreeMap<String, Long>();
+    for (Map.Entry<String, AtomicLong> e : myFailuresByCause.entrySet()) {
+      result.put(e.getKey(), e.getValue().get());
+    }
+    return result;
+  }
+
+  @NotNull
+  public Map<String, Long> getPhaseCounts() {
+    final Map<String, Long> result = new LinkedHashMap<String, Long>();
+    for (Map.Entry<Phase, Histogram> e : myHistograms.entrySet()) {
+      result.put(e.getKey().getKey(), e.getValue().getCount());
+    }
+    return result;
+  }
+
+  @NotNull
+  public Map<String, Long> getPhaseMeanMillis() {
+    final Map<String, Long> result = new LinkedHashMap<String, Long>();
+    for (Map.Entry<Phase, Histogram> e : myHistograms.entrySet()) {
+      result.put(e.getKey().getKey(), e.getValue().getMeanMs());
+    }
+    return result;
+  }
+
+  @NotNull
+  public Map<String, Long> getPhaseP95Millis() {
+    final Map<String, Long> result = new LinkedHashMap<String, Long>();
+    for (Map.Entry<Phase, Histogram> e : myHistograms.entrySet()) {
+      result.put(e.getKey().getKey(), e.getValue().getPercentileMs(95));
+    }
+    return result;
+  }
+
+  @NotNull
+  public Map<String, Long> getPhaseMaxMillis() {
+    final Map<String, Long> result = new LinkedHashMap<String, Long>();
+    for (Map.Entry<Phase, Histogram> e : myHistograms.entrySet()) {
+      result.put(e.getKey().getKey(), e.getValue().getMaxMs());
+    }
+    return result;
+  }
+
+  /**
+   * Registers the metrics in the platform MBean server, failures are only logged
+   */
+  void registerMBean() {
+    try {
+      final ObjectName name = new ObjectName(JMX_DOMAIN + ":type=ProvisioningMetrics,profile=" + ObjectName.quote(myProfileId) +
+                                             ",image=" + ObjectName.quote(myImageName));
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+      server.registerMBean(this, name);
+      myObjectName = name;
+    } catch (JMException e) {
+      LOG.warn("Failed to register provisioning metrics of local cloud image " + myImageName + " in JMX. " + e.getMessage());
+    }
+  }
+
+  void unregisterMBean() {
+    final ObjectName name = myObjectName;
+    if (name == null) return;
+    myObjectName = null;
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+    } catch (JMException e) {
+      LOG.debug("Failed to unregister " + name + ". " + e.getMessage());
+    }
+  }
+
+  /**
+   * Histogram of durations with fixed buckets from 10ms to 10 minutes
+   */
+  public static class Histogram {
+    private static final long[] BUCKET_BOUNDS_MS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 120000, 300000, 600000};
+
+    @NotNull private final long[] myBucketCounts = new long[BUCKET_BOUNDS_MS.length + 1];
+    private long myCount;
+    private long mySumMs;
+    private long myMaxMs;
+
+    synchronized void record(final long durationMs) {
+      final long value = Math.max(0, durationMs);
+      int bucket = 0;
+      while (bucket < BUCKET_BOUNDS_MS.length && value > BUCKET_BOUNDS_MS[bucket]) {
+        bucket++;
+      }
+      myBucketCounts[bucket]++;
+      myCount++;
+      mySumMs += value;
+      myMaxMs = Math.max(myMaxMs, value);
+    }
+
+    /**
+     * @return upper bounds of the buckets in milliseconds, the last bucket without a bound holds longer durations
+     */
+    @NotNull
+    public static long[] getBucketBoundsMs() {
+      return BUCKET_BOUNDS_MS.clone();
+    }
+
+    /**
+     * @return number of durations in every bucket, not cumulative
+     */
+    @NotNull
+    public synchronized long[] getBucketCounts() {
+      return myBucketCounts.clone();
+    }
+
+    public synchronized long getCount() {
+      return myCount;
+    }
+
+    public synchronized long getSumMs() {
+      return mySumMs;
+    }
+
+    public synchronized long getMaxMs() {
+      return myMaxMs;
+    }
+
+    public synchronized long getMeanMs() {
+      return myCount == 0 ? 0 : mySumMs / myCount;
+    }
+
+    public long getMedianMs() {
+      return getPercentileMs(50);
+    }
+
+    public long getP95Ms() {
+      return getPercentileMs(95);
+    }
+
+    /**
+     * @return upper bound of the bucket the percentile falls into, the maximum for the last bucket
+     */
+    public synchronized long getPercentileMs(final int percentile) {
+      if (myCount == 0) return 0;
+      final long rank = (myCount * percentile + 99) / 100;
+      long seen = 0;
+      for (int i = 0; i < BUCKET_BOUNDS_MS.length; i++) {
+        seen += myBucketCounts[i];
+        if (seen >= rank) return Math.min(BUCKET_BOUNDS_MS[i], myMaxMs);
+      }
+      return myMaxMs;
+    }
+  }
+}
@@ -0,0 +1,26 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link ProvisioningMetrics}, phase maps are keyed by {@link ProvisioningMetrics.Phase#getKey()}
+ */
+public interface ProvisioningMetricsMXBean {
+  long getStartsCount();
+
+  long getWarmStartsCount();
+
+  long getFailuresCount();
+
+  Map<String, Long> getFailuresByCause();
+
+  Map<String, Long> getPhaseCounts();
+
+  Map<String, Long> getPhaseMeanMillis();
+
+  Map<String, Long> getPhaseP95Millis();
+
+  Map<String, Long> getPhaseMaxMillis();
+}
@@ -0,0 +1,208 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import jetbrains.buildServer.util.ExceptionUtil;
+import jetbrains.buildServer.util.NamedDeamonThreadFactory;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs provisioning tasks (agent folder preparation and launches) in parallel on a bounded number of threads.
+ * Tasks are queued per image and taken round-robin, so a burst of starts of one image does not delay other images.
+ * Agent launches are additionally limited by a token bucket to avoid starting many JVMs at once.
+ */
+public class ProvisioningScheduler {
+  public static final int DEFAULT_CONCURRENCY = 4;
+  public static final double DEFAULT_LAUNCHES_PER_SECOND = 2;
+
+  @NotNull private final ThreadPoolExecutor myWorkers;
+  @NotNull private volatile LaunchRateLimiter myLaunchRateLimiter;
+  private volatile int myConcurrency;
+
+  @NotNull private final Object myLock = new Object();
+  @NotNull private final Map<String, Deque<Runnable>> myQueues = new HashMap<String, Deque<Runnable>>();
+  @NotNull private final Deque<String> myImagesOrder = new ArrayDeque<String>();
+  @NotNull private final Map<String, AtomicInteger> myInFlight = new HashMap<String, AtomicInteger>();
+  private int myQueueDepth;
+  private int myTotalInFlight;
+
+  public ProvisioningScheduler(final int concurrency, final double launchesPerSecond) {
+    myConcurrency = concurrency;
+    myWorkers = new ThreadPoolExecutor(concurrency, concurrency, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                                       new NamedDeamonThreadFactory("local-cloud-provisioning"));
+    myLaunchRateLimiter = createRateLimiter(launchesPerSecond);
+  }
+
+  /**
+   * Applies new limits, already running tasks are not affected
+   */
+  public synchronized void reconfigure(final int concurrency, final double launchesPerSecond) {
+    if (concurrency != myConcurrency) {
+      if (concurrency > myConcurrency) {
+        myWorkers.setMaximumPoolSize(concurrency);
+        myWorkers.setCorePoolSize(concurrency);
+      } else {
+        myWorkers.setCorePoolSize(concurrency);
+        myWorkers.setMaximumPoolSize(concurrency);
+      }
+      myConcurrency = concurrency;
+    }
+    if (launchesPerSecond != myLaunchRateLimiter.getPermitsPerSecond()) {
+      myLaunchRateLimiter = createRateLimiter(launchesPerSecond);
+    }
+  }
+
+  @NotNull
+  private static LaunchRateLimiter createRateLimiter(final double launchesPerSecond) {
+    return new LaunchRateLimiter(launchesPerSecond, Math.max(1, (int)Math.ceil(launchesPerSecond)));
+  }
+
+  public void submit(@NotNull final String imageId, @NotNull final String description, @NotNull final Runnable task) {
+    synchronized (myLock) {
+      Deque<Runnable> queue = myQueues.get(imageId);
+      if (queue == null) {
+        queue = new ArrayDeque<Runnable>();
+        myQueues.put(imageId, queue);
+      }
+      if (queue.isEmpty()) {
+        myImagesOrder.addLast(imageId);
+      }
+      queue.addLast(ExceptionUtil.catchAll(description, task));
+      myQueueDepth++;
+    }
+    myWorkers.execute(new RunNextCommand());
+  }
+
+  /**
+   * Blocks until one more agent JVM may be launched
+   */
+  public void acquireLaunchPermit() throws InterruptedException {
+    myLaunchRateLimiter.acquire();
+  }
+
+  public int getConcurrency() {
+    return myConcurrency;
+  }
+
+  public double getLaunchesPerSecond() {
+    return myLaunchRateLimiter.getPermitsPerSecond();
+  }
+
+  public int getQueueDepth() {
+    synchronized (myLock) {
+      return myQueueDepth;
+    }
+  }
+
+  public int getQueueDepth(@NotNull final String imageId) {
+    synchronized (myLock) {
+      final Deque<Runnable> queue = myQueues.get(imageId);
+      return queue == null ? 0 : queue.size();
+    }
+  }
+
+  public int getInFlight() {
+    synchronized (myLock) {
+      return myTotalInFlight;
+    }
+  }
+
+  public int getInFlight(@NotNull final String imageId) {
+    synchronized (myLock) {
+      final AtomicInteger inFlight = myInFlight.get(imageId);
+      return inFlight == null ? 0 : inFlight.get();
+    }
+  }
+
+  public void shutdown() {
+    synchronized (myLock) {
+      myQueues.clear();
+      myImagesOrder.clear();
+      myQueueDepth = 0;
+    }
+    myWorkers.shutdown();
+  }
+
+  /**
+   * Every submitted task schedules exactly one such command, which runs the next task of the next image in turn
+   */
+  private class RunNextCommand implements Runnable {
+    public void run() {
+      final String imageId;
+      final Runnable task;
+      synchronized (myLock) {
+        imageId = myImagesOrder.pollFirst();
+        if (imageId == null) return;
+
+        final Deque<Runnable> queue = myQueues.get(imageId);
+        task = queue.pollFirst();
+        if (!queue.isEmpty()) {
+          myImagesOrder.addLast(imageId);
+        }
+        myQueueDepth--;
+        myTotalInFlight++;
+        AtomicInteger inFlight = myInFlight.get(imageId);
+        if (inFlight == null) {
+          inFlight = new AtomicInteger();
+          myInFlight.put(imageId, inFlight);
+        }
+        inFlight.incrementAndGet();
+      }
+
+      try {
+        task.run();
+      } finally {
+        synchronized (myLock) {
+          myTotalInFlight--;
+          myInFlight.get(imageId).decrementAndGet();
+        }
+      }
+    }
+  }
+
+  /**
+   * Token bucket: permits are refilled with the given rate up to the given burst size
+   */
+  static class LaunchRateLimiter {
+    private final double myPermitsPerSecond;
+    private final double myMaxPermits;
+    private double myPermits;
+    private long myLastRefillNanos;
+
+    LaunchRateLimiter(final double permitsPerSecond, final int burst) {
+      myPermitsPerSecond = permitsPerSecond;
+      myMaxPermits = burst;
+      myPermits = burst;
+      myLastRefillNanos = System.nanoTime();
+    }
+
+    double getPermitsPerSecond() {
+      return myPermitsPerSecond;
+    }
+
+    void acquire() throws InterruptedException {
+      if (myPermitsPerSecond <= 0) return;
+
+      while (true) {
+        final long waitMillis;
+        synchronized (this) {
+          final long now = System.nanoTime();
+          myPermits = Math.min(myMaxPermits, myPermits + (now - myLastRefillNanos) / 1e9 * myPermitsPerSecond);
+          myLastRefillNanos = now;
+          if (myPermits >= 1) {
+            myPermits -= 1;
+            return;
+          }
+          waitMillis = (long)Math.ceil((1 - myPermits) / myPermitsPerSecond * 1000);
+        }
+        Thread.sleep(Math.max(1, waitMillis));
+      }
+    }
+  }
+}
@@ -4,8 +4,10 @@ package jetbrains.buildServer.clouds.local;
 
 import jetbrains.buildServer.clouds.CloudConstants;
 import jetbrains.buildServer.clouds.CloudInstanceUserData;
+import jetbrains.buildServer.clouds.InstanceStatus;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.File;
 import java.util.concurrent.ScheduledExecutorService;
 
 /**
@@ -19,6 +21,14 @@ public class ReStartableInstance extends LocalCloudInstance {
     super(image, instanceId, executor);
   }
 
+  ReStartableInstance(@NotNull final String instanceId,
+                      @NotNull final LocalCloudImage image,
+                      @NotNull final ScheduledExecutorService executor,
+                      @NotNull final File baseDir,
+                      @NotNull final InstanceStatus status) {
+    super(image, instanceId, executor, baseDir, status);
+  }
+
   @Override
   public boolean isRestartable() {
     return true;
@@ -26,7 +36,8 @@ public class ReStartableInstance extends LocalCloudInstance {
 
   @Override
   protected void cleanupStoppedInstance() {
-    //NOP, meaning it could start again
+    //keep the folder, so it could start again
+    getImage().addIdleInstance(this);
   }
 
 
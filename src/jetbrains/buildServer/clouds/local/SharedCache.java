@@ -0,0 +1,95 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Dependency cache folder shared by instances, e.g. a Maven local repository or a Gradle user home.
+ * <p/>
+ * Instances lease the cache while they run, the folder is prepared under the cache lock by the first of them,
+ * so concurrent instances reuse one warm folder. Builds get the folder via agent parameters, known tools are also told
+ * to lock the cache across processes, see {@link #getAgentParameters(String, File)}.
+ * Other tools can serialize access with <code>flock</code> on the lock file from <code>env.LOCAL_CLOUD_CACHE_&lt;NAME&gt;_LOCK</code>.
+ */
+public class SharedCache {
+  static final String LOCK_FILE_NAME = ".local-cloud-cache.lock";
+
+  @NotNull
+  private static final Map<String, String[]> TOOL_PARAMETERS = Collections.unmodifiableMap(new HashMap<String, String[]>() {{
+    //maven resolver 1.7+ serializes access to the local repository with file locks
+    put("maven", new String[]{"system.maven.repo.local", "system.aether.syncContext.named.factory=file-lock",
+                              "system.aether.syncContext.named.nameMapper=file-gav"});
+    //the rest lock their caches themselves
+    put("gradle", new String[]{"env.GRADLE_USER_HOME"});
+    put("npm", new String[]{"env.npm_config_cache"});
+    put("yarn", new String[]{"env.YARN_CACHE_FOLDER"});
+    put("pip", new String[]{"env.PIP_CACHE_DIR"});
+    put("nuget", new String[]{"env.NUGET_PACKAGES"});
+  }});
+
+  @NotNull private final File myDir;
+  @NotNull private final Set<LocalCloudInstance> myUsers = new HashSet<LocalCloudInstance>();
+  private boolean myIsPrepared;
+
+  public SharedCache(@NotNull final File dir) {
+    myDir = dir;
+  }
+
+  @NotNull
+  public File getDir() {
+    return myDir;
+  }
+
+  /**
+   * Makes sure the folder exists and records the instance as its user
+   */
+  synchronized void acquire(@NotNull final LocalCloudInstance instance) throws IOException {
+    if (!myIsPrepared) {
+      if (!myDir.isDirectory() && !myDir.mkdirs()) throw new IOException("Failed to create shared cache folder " + myDir);
+      final File lockFile = new File(myDir, LOCK_FILE_NAME);
+      if (!lockFile.isFile() && !lockFile.createNewFile() && !lockFile.isFile()) throw new IOException("Failed to create " + lockFile);
+      myIsPrepared = true;
+    }
+    myUsers.add(instance);
+  }
+
+  synchronized void release(@NotNull final LocalCloudInstance instance) {
+    myUsers.remove(instance);
+  }
+
+  /**
+   * @return number of instances which use the cache now
+   */
+  public synchronized int getUsersCount() {
+    return myUsers.size();
+  }
+
+  /**
+   * @return agent parameters which point builds to the cache folder: tool specific ones for known cache names
+   * and <code>env.LOCAL_CLOUD_CACHE_&lt;NAME&gt;</code> with the lock file for any name
+   */
+  @NotNull
+  static Map<String, String> getAgentParameters(@NotNull final String name, @NotNull final File dir) {
+    final Map<String, String> params = new LinkedHashMap<String, String>();
+    final String[] toolParams = TOOL_PARAMETERS.get(name.toLowerCase(Locale.ENGLISH));
+    if (toolParams != null) {
+      for (String param : toolParams) {
+        final int eq = param.indexOf('=');
+        if (eq < 0) {
+          params.put(param, dir.getAbsolutePath());
+        } else {
+          params.put(param.substring(0, eq), param.substring(eq + 1));
+        }
+      }
+    }
+    final String envName = "env.LOCAL_CLOUD_CACHE_" + name.toUpperCase(Locale.ENGLISH).replaceAll("[^A-Z0-9]", "_");
+    params.put(envName, dir.getAbsolutePath());
+    params.put(envName + "_LOCK", new File(dir, LOCK_FILE_NAME).getAbsolutePath());
+    return params;
+  }
+}
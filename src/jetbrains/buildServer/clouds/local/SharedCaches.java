@@ -0,0 +1,37 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shared caches of all cloud profiles, images which point to the same folder share one {@link SharedCache}
+ */
+public class SharedCaches {
+  @NotNull private final Map<String, SharedCache> myCaches = new HashMap<String, SharedCache>();
+
+  @NotNull
+  public synchronized SharedCache get(@NotNull final File dir) {
+    final String key = getKey(dir);
+    SharedCache cache = myCaches.get(key);
+    if (cache == null) {
+      cache = new SharedCache(dir);
+      myCaches.put(key, cache);
+    }
+    return cache;
+  }
+
+  @NotNull
+  private static String getKey(@NotNull final File dir) {
+    try {
+      return dir.getCanonicalPath();
+    } catch (IOException e) {
+      return dir.getAbsolutePath();
+    }
+  }
+}
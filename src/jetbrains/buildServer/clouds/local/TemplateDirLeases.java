@@ -0,0 +1,57 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Template folders instances are cloned from. A replaced template folder is retired rather than deleted,
+ * it is deleted once the last clone reading it has finished.
+ */
+public class TemplateDirLeases {
+  @NotNull private final Map<File, Integer> myUsers = new HashMap<File, Integer>();
+  @NotNull private final Set<File> myRetired = new HashSet<File>();
+
+  /**
+   * @return false if the folder is already retired, the caller should take the current template instead
+   */
+  synchronized boolean acquire(@NotNull final File dir) {
+    if (myRetired.contains(dir)) return false;
+    final Integer users = myUsers.get(dir);
+    myUsers.put(dir, users == null ? 1 : users + 1);
+    return true;
+  }
+
+  void release(@NotNull final File dir) {
+    synchronized (this) {
+      final Integer users = myUsers.get(dir);
+      if (users == null) return;
+      if (users > 1) {
+        myUsers.put(dir, users - 1);
+        return;
+      }
+      myUsers.remove(dir);
+      if (!myRetired.contains(dir)) return;
+    }
+    FileUtil.delete(dir);
+  }
+
+  /**
+   * Deletes the folder now if nobody reads it, otherwise once the last user releases it
+   */
+  void retire(@NotNull final File dir) {
+    synchronized (this) {
+      //folder names are unique, so retired ones are remembered to reject late acquires
+      myRetired.add(dir);
+      if (myUsers.containsKey(dir)) return;
+    }
+    FileUtil.delete(dir);
+  }
+}
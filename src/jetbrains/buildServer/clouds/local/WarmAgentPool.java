@@ -0,0 +1,110 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps a number of instance folders which are already cloned from the image template
+ * and have executable scripts, so starting an instance only needs to patch its properties.
+ */
+public class WarmAgentPool {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(WarmAgentPool.class);
+
+  @NotNull private final LocalCloudImage myImage;
+  @NotNull private final ProvisioningScheduler myScheduler;
+  @NotNull private final Deque<File> myReadyDirs = new ConcurrentLinkedDeque<File>();
+  @NotNull private final AtomicInteger myPreparing = new AtomicInteger();
+  private volatile int mySize;
+  private volatile boolean myIsDisposed;
+
+  public WarmAgentPool(@NotNull final LocalCloudImage image, @NotNull final ProvisioningScheduler scheduler) {
+    myImage = image;
+    myScheduler = scheduler;
+  }
+
+  public int getSize() {
+    return mySize;
+  }
+
+  public void setSize(final int size) {
+    mySize = size;
+  }
+
+  public int getReadyCount() {
+    return myReadyDirs.size();
+  }
+
+  @NotNull
+  List<File> getReadyDirs() {
+    return new ArrayList<File>(myReadyDirs);
+  }
+
+  /**
+   * @return prepared instance folder or null if the pool is empty, taken folder is replaced in background
+   */
+  @Nullable
+  public File poll() {
+    final File dir = myReadyDirs.pollFirst();
+    if (dir != null) myImage.getJournal().warmDirRemoved(dir);
+    refill();
+    return dir;
+  }
+
+  public void refill() {
+    while (!myIsDisposed && myReadyDirs.size() + myPreparing.get() < mySize) {
+      myPreparing.incrementAndGet();
+      myScheduler.submit(myImage.getId(), "prepare warm agent folder for " + myImage.getName(), new PrepareCommand());
+    }
+  }
+
+  public void dispose() {
+    myIsDisposed = true;
+    File dir;
+    while ((dir = myReadyDirs.pollFirst()) != null) {
+      myImage.getDiskReclaimer().reclaim(dir);
+      myImage.getJournal().warmDirRemoved(dir);
+    }
+  }
+
+  private class PrepareCommand implements Runnable {
+    public void run() {
+      File dir = null;
+      try {
+        if (myIsDisposed) return;
+
+        dir = FileUtil.createTempDirectory(LocalCloudInstance.BASE_DIR_PREFIX, "");
+        myImage.getJournal().warmDirCreated(dir);
+        myImage.cloneTemplate(dir);
+        AgentHomeCloner.updateScriptPermissions(dir);
+
+        if (myIsDisposed) {
+          FileUtil.delete(dir);
+          myImage.getJournal().warmDirRemoved(dir);
+          return;
+        }
+        myReadyDirs.addLast(dir);
+      } catch (IOException e) {
+        LOG.warn("Failed to prepare warm agent folder for image " + myImage.getName() + ". " + e.getMessage());
+        if (dir != null) {
+          FileUtil.delete(dir);
+          myImage.getJournal().warmDirRemoved(dir);
+        }
+      } finally {
+        myPreparing.decrementAndGet();
+      }
+    }
+  }
+}
@@ -0,0 +1,174 @@
+
+
+package jetbrains.buildServer.clouds.local;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.util.io.ZipUtil;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.NamedDeamonThreadFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Pristine agent home extracted once from an image zip archive.
+ * Instances are cloned from the extracted folder instead of extracting the archive again.
+ * The folder is re-extracted when the archive size, modification time and checksum change.
+ */
+public class ZipAgentTemplate {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(ZipAgentTemplate.class);
+
+  @NotNull private final File myZipFile;
+  @NotNull private final ExecutorService myExecutor;
+  @NotNull private final TemplateDirLeases myLeases;
+  @NotNull private final Object myLock = new Object();
+  @Nullable private Future<Extracted> myExtracted;
+
+  public ZipAgentTemplate(@NotNull final File zipFile, @NotNull final String imageName, @NotNull final TemplateDirLeases leases) {
+    myZipFile = zipFile;
+    myLeases = leases;
+    myExecutor = Executors.newSingleThreadExecutor(new NamedDeamonThreadFactory("local-cloud-template-" + imageName));
+  }
+
+  /**
+   * Starts extraction in background if there is no up-to-date template yet
+   */
+  public void prepareAsync() {
+    synchronized (myLock) {
+      if (myExtracted == null) {
+        myExtracted = myExecutor.submit(new ExtractCommand(null));
+      }
+    }
+  }
+
+  /**
+   * @return extracted template folder, waits for the extraction if it is in progress.
+   * The folder must be acquired from {@link TemplateDirLeases} before it is read, a newer extraction retires it.
+   */
+  @NotNull
+  public File getTemplateDir() throws IOException {
+    final Future<Extracted> future;
+    synchronized (myLock) {
+      final Extracted current = getIfDone(myExtracted);
+      if (myExtracted == null || (myExtracted.isDone() && (current == null || isOutdated(current)))) {
+        LOG.info("Agent template for " + myZipFile + " is missing or outdated, extracting");
+        myExtracted = myExecutor.submit(new ExtractCommand(current));
+      }
+      future = myExtracted;
+    }
+
+    try {
+      return future.get().myDir;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for " + myZipFile + " extraction");
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException)cause;
+      throw new IOException("Failed to extract " + myZipFile + ": " + cause.getMessage(), cause);
+    }
+  }
+
+  public void dispose() {
+    myExecutor.shutdownNow();
+    synchronized (myLock) {
+      final Extracted current = getIfDone(myExtracted);
+      if (current != null) {
+        FileUtil.delete(current.myDir);
+      }
+      myExtracted = null;
+    }
+  }
+
+  private boolean isOutdated(@NotNull final Extracted extracted) throws IOException {
+    final long size = myZipFile.length();
+    final long lastModified = myZipFile.lastModified();
+    if (size == extracted.mySize && lastModified == extracted.myLastModified) return false;
+    if (size != extracted.mySize) return true;
+
+    //the archive was touched, contents may still be the same
+    if (checksum(myZipFile) != extracted.myChecksum) return true;
+    extracted.myLastModified = lastModified;
+    return false;
+  }
+
+  @Nullable
+  private static Extracted getIfDone(@Nullable final Future<Extracted> future) {
+    if (future == null || !future.isDone() || future.isCancelled()) return null;
+    try {
+      return future.get();
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  private static long checksum(@NotNull final File file) throws IOException {
+    final CheckedInputStream in = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), new CRC32());
+    try {
+      final byte[] buffer = new byte[64 * 1024];
+      //noinspection StatementWithEmptyBody
+      while (in.read(buffer) >= 0) ;
+      return in.getChecksum().getValue();
+    } finally {
+      FileUtil.close(in);
+    }
+  }
+
+  private static class Extracted {
+    @NotNull private final File myDir;
+    private final long mySize;
+    private volatile long myLastModified;
+    private final long myChecksum;
+
+    private Extracted(@NotNull final File dir, final long size, final long lastModified, final long checksum) {
+      myDir = dir;
+      mySize = size;
+      myLastModified = lastModified;
+      myChecksum = checksum;
+    }
+  }
+
+  private class ExtractCommand implements Callable<Extracted> {
+    @Nullable private final Extracted myPrevious;
+
+    private ExtractCommand(@Nullable final Extracted previous) {
+      myPrevious = previous;
+    }
+
+    @Override
+    public Extracted call() throws IOException {
+      final long size = myZipFile.length();
+      final long lastModified = myZipFile.lastModified();
+      final long checksum = checksum(myZipFile);
+
+      final File templateDir = FileUtil.createTempDirectory("tc_agentTemplate_", "");
+      try {
+        final long start = System.currentTimeMillis();
+        ZipUtil.extract(myZipFile, templateDir, new FilenameFilter() {
+          public boolean accept(File dir, String name) {
+            File topLevel = new File(dir, name);
+            while (topLevel.getParentFile() != null && !topLevel.getParentFile().equals(templateDir)) {
+              topLevel = topLevel.getParentFile();
+            }
+            return !AgentHomeCloner.DIRS_NOT_TO_COPY.contains(topLevel.getName());
+          }
+        });
+        LOG.info("Extracted " + myZipFile + " to " + templateDir + " in " + (System.currentTimeMillis() - start) + "ms");
+      } catch (IOException e) {
+        FileUtil.delete(templateDir);
+        throw e;
+      }
+
+      //instances may still be cloned from the previous folder
+      if (myPrevious != null) {
+        myLeases.retire(myPrevious.myDir);
+      }
+      return new Extracted(templateDir, size, lastModified, checksum);
+    }
+  }
+}